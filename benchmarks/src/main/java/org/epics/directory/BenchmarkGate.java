@@ -0,0 +1,122 @@
+/**
+ * BenchmarkGate runs benchmarks and compares the results to a baseline.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+/**
+ * BenchmarkGate runs JMH benchmarks and fails (exit status 1) if a result
+ * is worse than the recorded baseline by more than a tolerance, so that
+ * performance regressions can be caught in an offline build or CI job.
+ *
+ * Usage:
+ * <pre>
+ *     java -cp target/benchmarks.jar org.epics.directory.BenchmarkGate baseline.properties [JMH options]
+ * </pre>
+ *
+ * If the baseline file does not exist, the results are recorded into it.
+ * Results are identified by benchmark name, mode and parameter values;
+ * results without a baseline entry are reported but not checked.
+ * The tolerance (default 0.10, i.e. 10%) is set by the system property gate.tolerance.
+ */
+public class BenchmarkGate {
+
+    private BenchmarkGate() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BenchmarkGate <baseline file> [JMH options]");
+            System.exit(2);
+        }
+        String baselineFile = args[0];
+        String[] jmhArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+        double tolerance = Double.parseDouble(System.getProperty("gate.tolerance", "0.10"));
+
+        Collection<RunResult> results = new Runner(new CommandLineOptions(jmhArgs)).run();
+
+        Properties baseline = new Properties();
+        boolean record = !new File(baselineFile).exists();
+        if (record) {
+            for (RunResult r : results) {
+                baseline.setProperty(key(r), Double.toString(r.getPrimaryResult().getScore()));
+            }
+            OutputStream out = new FileOutputStream(baselineFile);
+            try {
+                baseline.store(out, "Benchmark baseline");
+            } finally {
+                out.close();
+            }
+            System.out.println("Recorded " + results.size() + " results as baseline in " + baselineFile);
+            return;
+        }
+
+        InputStream in = new FileInputStream(baselineFile);
+        try {
+            baseline.load(in);
+        } finally {
+            in.close();
+        }
+        List<String> regressions = new ArrayList<String>();
+        for (RunResult r : results) {
+            String key = key(r);
+            double score = r.getPrimaryResult().getScore();
+            String base = baseline.getProperty(key);
+            if (base == null) {
+                System.out.println("NEW   " + key + ": " + score);
+                continue;
+            }
+            double b = Double.parseDouble(base);
+            /* Throughput: higher is better; all time based modes: lower is better */
+            boolean higherIsBetter = r.getParams().getMode().shortLabel().equals("thrpt");
+            double change = higherIsBetter ? (b - score) / b : (score - b) / b;
+            String line = key + ": " + score + " (baseline " + b + ", "
+                    + String.format("%+.1f%%", -100.0 * change) + ")";
+            if (change > tolerance) {
+                regressions.add(line);
+                System.out.println("WORSE " + line);
+            } else {
+                System.out.println("OK    " + line);
+            }
+        }
+        if (!regressions.isEmpty()) {
+            System.out.println(regressions.size() + " result(s) worse than baseline by more than "
+                    + (100.0 * tolerance) + "%");
+            System.exit(1);
+        }
+    }
+
+    private static String key(RunResult r) {
+        StringBuilder sb = new StringBuilder(r.getParams().getBenchmark());
+        sb.append('.').append(r.getParams().getMode().shortLabel());
+        for (String p : r.getParams().getParamsKeys()) {
+            sb.append('.').append(p).append('=').append(r.getParams().getParam(p));
+        }
+        return sb.toString();
+    }
+}
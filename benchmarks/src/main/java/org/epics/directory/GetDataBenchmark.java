@@ -0,0 +1,135 @@
+/**
+ * GetDataBenchmark measures the complete handling of a directory request.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.epics.pvdata.pv.PVStructure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GetDataBenchmark drives CFConnector.getData against a synthetic in-memory
+ * directory (see SyntheticSource), with the result cache disabled, so that every
+ * invocation parses the arguments, runs the query, sorts the result and builds
+ * the NTTable.
+ *
+ * The benchmark is run in throughput and sample time mode; the latter reports
+ * latency percentiles. Run it with "-prof gc" to get the allocation rate.
+ *
+ * Parameters:
+ * <pre>
+ *     channels     - number of channels in the directory
+ *     properties   - number of properties per channel
+ *     cardinality  - number of distinct values per property
+ *     tags         - number of distinct tags (each channel has about a third of them)
+ *     query        - "all" (every channel), "name" (name pattern matching 1/5 of the
+ *                    channels) or "property" (property value matching 1/cardinality)
+ *     sortKeys     - number of sort properties (0 = unsorted)
+ *     show         - number of properties in the show filter (0 = no filter, all columns)
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class GetDataBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int channels;
+
+    @Param({"10", "40"})
+    public int properties;
+
+    @Param({"20"})
+    public int cardinality;
+
+    @Param({"10"})
+    public int tags;
+
+    @Param({"all", "name", "property"})
+    public String query;
+
+    @Param({"0", "1", "3"})
+    public int sortKeys;
+
+    @Param({"0", "3"})
+    public int show;
+
+    private CFConnector connector;
+    private PVStructure args;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SyntheticSource source = new SyntheticSource(
+                SyntheticChannels.create(channels, properties, cardinality, tags, 42L));
+        connector = new CFConnector(source, new ResultCache(0, 0L, 0L));
+        args = createArgs();
+    }
+
+    private PVStructure createArgs() {
+        String q;
+        if ("all".equals(query)) {
+            q = "*";
+        } else if ("name".equals(query)) {
+            q = "SR:*";
+        } else if ("property".equals(query)) {
+            q = "p1=v1";
+        } else {
+            throw new IllegalArgumentException("Unknown query type " + query);
+        }
+
+        StringBuilder sort = new StringBuilder();
+        for (int i = 0; i < sortKeys; i++) {
+            sort.append(i > 0 ? "," : "").append("p").append((i + 1) % properties);
+        }
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i < show; i++) {
+            columns.append(i > 0 ? "," : "").append("p").append(i % properties);
+        }
+        if (show > 0) {
+            columns.append(",t0");
+        }
+
+        if (sortKeys > 0 && show > 0) {
+            return SyntheticChannels.args(new String[] {"query", "sort", "show"},
+                    new String[] {q, sort.toString(), columns.toString()});
+        } else if (sortKeys > 0) {
+            return SyntheticChannels.args(new String[] {"query", "sort"},
+                    new String[] {q, sort.toString()});
+        } else if (show > 0) {
+            return SyntheticChannels.args(new String[] {"query", "show"},
+                    new String[] {q, columns.toString()});
+        }
+        return SyntheticChannels.args(new String[] {"query"}, new String[] {q});
+    }
+
+    @Benchmark
+    public PVStructure getData() {
+        return connector.getData(args);
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * LegacyTable is the original NTTable building code of CFConnector.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.ChannelUtil;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.FieldBuilder;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.PVBooleanArray;
+import org.epics.pvdata.pv.PVDataCreate;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVStringArray;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.ScalarArray;
+import org.epics.pvdata.pv.ScalarType;
+
+/**
+ * LegacyTable keeps the NTTable building code of CFConnector as it was before
+ * ChannelTable, as a baseline for the benchmarks: sorting with a comparator that
+ * looks up the sort properties on every comparison, and filling the columns
+ * with list lookups per property.
+ */
+final class LegacyTable {
+
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final PVDataCreate pvDataCreate = PVDataFactory.getPVDataCreate();
+
+    private LegacyTable() {
+    }
+
+    private static class ChannelComparator implements Comparator<Channel> {
+
+        private final List<String> sortProperties;
+
+        ChannelComparator(List<String> prop) {
+            sortProperties = prop;
+        }
+
+        @Override
+        public int compare(Channel c1, Channel c2) {
+            for (String prop : sortProperties) {
+                Property p1 = c1.getProperty(prop);
+                Property p2 = c2.getProperty(prop);
+
+                if (p1 == null) {
+                    if (p2 != null) {
+                        return -1;
+                    }
+                } else {
+                    if (p2 == null) {
+                        return 1;
+                    } else {
+                        int cmp = p1.getValue().compareTo(p2.getValue());
+                        if (cmp != 0) {
+                            return cmp;
+                        }
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+    static PVStructure build(Collection<Channel> result, DSQuery dsQuery) {
+        List<String> show = dsQuery.getShow() != null ? new ArrayList<String>(dsQuery.getShow()) : null;
+        boolean useShowFilter = show != null;
+        List<String> sort = dsQuery.getSort();
+        boolean showOwner = dsQuery.isOwner();
+
+        Collection<Channel> channels;
+        List<String> properties;
+        List<String> tags;
+        int nChan;
+
+        HashMap<String, String[]> propColumns = new HashMap<String, String[]>();
+        HashMap<String, boolean[]> tagColumns = new HashMap<String, boolean[]>();
+        String[] chanColumn;
+        String[] ownerColumn;
+
+        channels = result;
+        
+        if (channels != null) {
+            if (sort != null) {
+                ChannelComparator comp = new ChannelComparator(sort);
+                ArrayList<Channel> sortedCh = new ArrayList<Channel>(channels);
+                Collections.sort(sortedCh, comp);
+                channels = sortedCh;
+            }
+            nChan = channels.size();
+            properties = new ArrayList<String>(
+                            ChannelUtil.getPropertyNames(channels));
+            tags = new ArrayList<String>(ChannelUtil.getAllTagNames(channels));
+        } else {
+            nChan = 0;
+            properties = Collections.emptyList();
+            tags = Collections.emptyList();
+        }
+
+        /* Filter out no-show columns */
+        if (useShowFilter) {
+            properties.retainAll(show);
+            tags.retainAll(show);
+        }
+        
+        /* Create the empty columns data arrays */
+        chanColumn  = new String[nChan];
+        ownerColumn = new String[nChan];
+        for (String prop : properties) {
+            propColumns.put(prop, new String[nChan]);
+        }
+        for (String tag : tags) {
+            tagColumns.put(tag, new boolean[nChan]);
+        }
+        int noCols = 1 + properties.size() + tags.size();  // channel properties tags
+        if (showOwner) {
+            noCols++;
+        }
+
+        /* Loop through the channels, setting the appropriate fields in the column data */
+        int i = 0;
+        for (Channel chan : channels) {
+            chanColumn[i] = chan.getName();
+            if (showOwner) {
+                ownerColumn[i] = chan.getOwner();
+            }
+            for (Property prop : chan.getProperties()) {
+                String s = prop.getName();
+                if (!useShowFilter || properties.contains(s)) {
+                    String[] col = propColumns.get(s);
+                    col[i] = prop.getValue();
+                }
+            }
+            for (Tag tag : chan.getTags()) {
+                String s = tag.getName();
+                if (!useShowFilter || tags.contains(s)) {
+                    boolean[] col = tagColumns.get(s);
+                    col[i] = true;
+                }
+            }
+            i++;
+        }
+
+        /* Create the labels */
+        List<String> labels = new ArrayList<String>(noCols);
+        
+        /* Create the value fields */
+        List<Object> valueFieldsData = new ArrayList<Object>();
+        
+        /* Construct the return data NTTable */
+        FieldBuilder topBuilder = fieldCreate.createFieldBuilder();
+        topBuilder.setId("epics:nt/NTTable:1.0");
+        topBuilder.addArray("labels", ScalarType.pvString);
+        
+        FieldBuilder valueNestedBuilder = topBuilder.addNestedStructure("value");
+
+        ScalarArray stringColumnField = fieldCreate.createScalarArray(ScalarType.pvString);
+        ScalarArray booleanColumnField = fieldCreate.createScalarArray(ScalarType.pvBoolean);
+        
+        Integer col = 0;
+        
+        /* Add channel column */
+        if (nChan > 0) {
+            valueNestedBuilder.add("c"+col.toString(), stringColumnField);
+            valueFieldsData.add(chanColumn);
+            col++;
+            labels.add("channel");
+        }
+
+        /* Add owner column */
+        if (showOwner && nChan > 0) {
+            valueNestedBuilder.add("c"+col.toString(), stringColumnField);
+            valueFieldsData.add(ownerColumn);
+            col++;
+            labels.add("@owner");
+        }
+
+        /* Add properties columns */
+        if (useShowFilter) {
+            for (String prop : show) {
+                if (properties.contains(prop)) {
+                    valueNestedBuilder.add("c"+col.toString(), stringColumnField);
+                    valueFieldsData.add(propColumns.get(prop));
+                    col++;
+                    labels.add(prop);
+                }
+            }
+        } else {
+            for (String prop : properties) {
+                valueNestedBuilder.add("c"+col.toString(), stringColumnField);
+                valueFieldsData.add(propColumns.get(prop));
+                col++;
+                labels.add(prop);
+            }
+        }
+
+        /* Add tags columns */
+        if (useShowFilter) {
+            for (String tag : show) {
+                if (tags.contains(tag)) {
+                    valueNestedBuilder.add("c"+col.toString(), booleanColumnField);
+                    valueFieldsData.add(tagColumns.get(tag));
+                    col++;
+                    labels.add(tag);
+                }
+            }
+        } else {
+            for (String tag : tags) {
+                valueNestedBuilder.add("c"+col.toString(), booleanColumnField);
+                valueFieldsData.add(tagColumns.get(tag));
+                col++;
+                labels.add(tag);
+            }
+        }
+
+        valueNestedBuilder.endNested();
+        
+        PVStructure pvTop = pvDataCreate.createPVStructure(topBuilder.createStructure());
+        PVStructure pvValue = pvTop.getStructureField("value");
+        int ix = 0;
+        for (PVField pvField : pvValue.getPVFields())
+        {
+            if (pvField instanceof PVStringArray)
+            {
+                String[] val = (String[])valueFieldsData.get(ix);
+                ((PVStringArray)pvField).put(0, val.length, val, 0);
+            }
+            else if (pvField instanceof PVBooleanArray)
+            {
+                boolean[] val = (boolean[])valueFieldsData.get(ix);
+                ((PVBooleanArray)pvField).put(0, val.length, val, 0);
+            }
+            else
+                throw new RuntimeException("unsupported column type: " + pvField.getField());
+            ix++;
+        }
+        
+        PVStringArray labelsArray = (PVStringArray) pvTop.getScalarArrayField("labels", ScalarType.pvString);
+        labelsArray.put(0, noCols, labels.toArray(new String[0]), 0);
+        
+        return pvTop;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * SyntheticChannels generates channel sets for the benchmarks.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.Field;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.ScalarType;
+
+/**
+ * SyntheticChannels creates reproducible sets of channels that look like
+ * an accelerator directory: names like "SR:C07-MG:G02A{Quad:M12}Fld-SP",
+ * properties "p0".."pN" with a limited number of distinct values each,
+ * and tags "t0".."tN" set on a fraction of the channels.
+ */
+final class SyntheticChannels {
+
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final String[] SYSTEMS = {"SR", "BR", "LN", "BT", "TL"};
+    private static final String[] DEVICES = {"Quad", "Sext", "HCor", "VCor", "BPM", "Bend"};
+
+    private SyntheticChannels() {
+    }
+
+    /**
+     * Creates a channel set.
+     *
+     * @param channels number of channels
+     * @param properties number of properties per channel
+     * @param cardinality number of distinct values per property
+     * @param tags number of distinct tags (each channel has about a third of them)
+     * @param seed random seed
+     * @return the channels, in name order
+     */
+    static List<Channel> create(int channels, int properties, int cardinality, int tags, long seed) {
+        Random r = new Random(seed);
+        List<Channel> result = new ArrayList<Channel>(channels);
+        for (int i = 0; i < channels; i++) {
+            String name = String.format("%s:C%02d-MG:G%02d%c{%s:M%d}Fld-%s",
+                    SYSTEMS[i % SYSTEMS.length], 1 + (i / 1000) % 30, 1 + (i / 10) % 6,
+                    (char) ('A' + i % 2), DEVICES[(i / 2) % DEVICES.length], i, (i % 2 == 0) ? "SP" : "I");
+            Channel.Builder b = Channel.Builder.channel(name).owner("owner" + (i % 3));
+            for (int p = 0; p < properties; p++) {
+                if (p == 0) {
+                    /* Numeric, position-like property */
+                    b.with(Property.Builder.property("p0", String.format("%.4f", r.nextDouble() * 800.0)));
+                } else {
+                    b.with(Property.Builder.property("p" + p, "v" + r.nextInt(Math.max(cardinality, 1))));
+                }
+            }
+            for (int t = 0; t < tags; t++) {
+                if (r.nextInt(3) == 0) {
+                    b.with(Tag.Builder.tag("t" + t));
+                }
+            }
+            result.add(b.build());
+        }
+        return result;
+    }
+
+    /**
+     * Creates the argument structure of a request.
+     *
+     * @param names argument names, e.g. "query", "show", "sort"
+     * @param values argument values
+     * @return argument structure as sent inside the NTURI query field
+     */
+    static PVStructure args(String[] names, String[] values) {
+        Field[] f = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            f[i] = fieldCreate.createScalar(ScalarType.pvString);
+        }
+        PVStructure args = PVDataFactory.getPVDataCreate().createPVStructure(fieldCreate.createStructure(names, f));
+        for (int i = 0; i < names.length; i++) {
+            args.getStringField(names[i]).put(values[i]);
+        }
+        return args;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * SyntheticSource answers queries from an in-memory set of channels.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * SyntheticSource is a ChannelSource standing in for the ChannelFinder service
+ * in the benchmarks. It answers queries from an index over a fixed set of channels
+ * (see ChannelIndex), so that no network or ChannelFinder instance is needed
+ * and results are reproducible.
+ */
+final class SyntheticSource implements ChannelSource {
+
+    private final ChannelIndex index;
+    private final int size;
+
+    /**
+     * @param channels the channels of the directory
+     */
+    SyntheticSource(List<Channel> channels) {
+        index = new ChannelIndex(channels);
+        size = channels.size();
+    }
+
+    @Override
+    public Collection<Channel> find(String query) {
+        return index.find(ChannelQuery.parse(query));
+    }
+
+    /**
+     * @return number of channels in the directory
+     */
+    int size() {
+        return size;
+    }
+}
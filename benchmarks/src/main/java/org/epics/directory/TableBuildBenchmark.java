@@ -0,0 +1,81 @@
+/**
+ * TableBuildBenchmark compares the NTTable building implementations.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.epics.pvdata.pv.PVStructure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TableBuildBenchmark measures building the NTTable for a query result,
+ * with the original implementation (LegacyTable) and with ChannelTable,
+ * for different result sizes, numbers of properties and sort keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableBuildBenchmark {
+
+    @Param({"1000", "100000"})
+    public int channels;
+
+    @Param({"10", "40"})
+    public int properties;
+
+    @Param({"", "p1", "p1,p2,p0"})
+    public String sort;
+
+    private List<Channel> result;
+    private DSQuery query;
+
+    @Setup
+    public void setup() {
+        result = SyntheticChannels.create(channels, properties, 20, 10, 42L);
+        if (sort.length() > 0) {
+            query = DSQuery.parse(SyntheticChannels.args(
+                    new String[] {"query", "sort"}, new String[] {"*", sort}));
+        } else {
+            query = DSQuery.parse(SyntheticChannels.args(
+                    new String[] {"query"}, new String[] {"*"}));
+        }
+    }
+
+    @Benchmark
+    public PVStructure legacy() {
+        return LegacyTable.build(result, query);
+    }
+
+    @Benchmark
+    public PVStructure channelTable() {
+        return ChannelTable.build(result, query);
+    }
+}
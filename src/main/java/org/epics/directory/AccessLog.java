@@ -0,0 +1,372 @@
+/**
+ * AccessLog records the requests answered by the service in a binary log.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.Field;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.ScalarType;
+
+/**
+ * AccessLog writes one record per request of the ds service to a rotating binary file.
+ *
+ * A record holds the arrival time, the client identity, the normalized request
+ * arguments (all string arguments except client, with trimmed values, ordered by name),
+ * the total latency, the number of result rows and the outcome. Records are handed
+ * to a background writer thread through a bounded queue, so that logging never blocks
+ * a request; when the queue is full, records are dropped and counted.
+ *
+ * When the file exceeds its maximum size, it is renamed to &lt;file&gt;.1 (shifting
+ * older files to .2, .3, ...; the oldest one is deleted) and a new file is started.
+ * An existing file is rotated in the same way when the log is opened, as its last
+ * record may be incomplete after a crash.
+ *
+ * File format (DataOutputStream encoding): the int MAGIC, then records of
+ * <pre>
+ *     long   arrival time (ms since the epoch)
+ *     int    latency (microseconds)
+ *     int    number of result rows
+ *     byte   outcome (OK, WARNING, ERROR)
+ *     UTF    client ("" if none)
+ *     short  number of arguments, followed by name and value (UTF) of each argument
+ * </pre>
+ */
+final class AccessLog {
+
+    private static final boolean DEBUG = false; // Print debug info
+    static final int MAGIC = 0x44534c31;    // "DSL1"
+    static final byte OK = 0;
+    static final byte WARNING = 1;
+    static final byte ERROR = 2;
+
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final Entry STOP = new Entry(0, "", Collections.<String, String> emptyMap(), 0, 0, OK);
+
+    private final File file;
+    private final long maxBytes;
+    private final int files;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    final AtomicLong written = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(buffer);
+    private DataOutputStream out = null;
+    private long size = 0;
+
+    /**
+     * Entry is one logged request.
+     */
+    static final class Entry {
+        final long time;
+        final String client;
+        final Map<String, String> arguments;
+        final int micros;
+        final int rows;
+        final byte outcome;
+
+        Entry(long time, String client, Map<String, String> arguments, int micros, int rows, byte outcome) {
+            this.time = time;
+            this.client = client;
+            this.arguments = arguments;
+            this.micros = micros;
+            this.rows = rows;
+            this.outcome = outcome;
+        }
+
+        /**
+         * @return the argument structure of the request (without the client argument)
+         */
+        PVStructure toArguments() {
+            String[] names = arguments.keySet().toArray(new String[arguments.size()]);
+            Field[] fields = new Field[names.length];
+            for (int i = 0; i < names.length; i++) {
+                fields[i] = fieldCreate.createScalar(ScalarType.pvString);
+            }
+            PVStructure pvArguments = PVDataFactory.getPVDataCreate()
+                    .createPVStructure(fieldCreate.createStructure(names, fields));
+            for (String name : names) {
+                pvArguments.getStringField(name).put(arguments.get(name));
+            }
+            return pvArguments;
+        }
+    }
+
+    /**
+     * Creates the log and starts its writer thread.
+     *
+     * @param file the log file (an existing one is rotated)
+     * @param maxBytes size at which the file is rotated
+     * @param files number of rotated files kept
+     * @param queueSize maximum number of records waiting to be written
+     */
+    AccessLog(File file, long maxBytes, int files, int queueSize) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.files = files;
+        this.queue = new ArrayBlockingQueue<Entry>(Math.max(queueSize, 1));
+        writer = new NamedThreadFactory("ds-access-log").newThread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+        writer.start();
+    }
+
+    /**
+     * Creates the access log configured by the system properties ds.log.file,
+     * ds.log.maxBytes, ds.log.files and ds.log.queueSize.
+     *
+     * @return the access log, or null if ds.log.file is not set
+     */
+    static AccessLog create() {
+        String name = System.getProperty("ds.log.file");
+        if (name == null || name.length() == 0) {
+            return null;
+        }
+        return new AccessLog(new File(name), Long.getLong("ds.log.maxBytes", 64L << 20),
+                Integer.getInteger("ds.log.files", 5), Integer.getInteger("ds.log.queueSize", 10000));
+    }
+
+    /**
+     * Returns the normalized arguments of a request: all string arguments except client,
+     * with trimmed values, ordered by name.
+     *
+     * @param args the argument structure of the request
+     * @return the arguments
+     */
+    static Map<String, String> normalize(PVStructure args) {
+        Map<String, String> arguments = new TreeMap<String, String>();
+        for (PVField pvField : args.getPVFields()) {
+            if (pvField instanceof PVString && !pvField.getFieldName().equals("client")) {
+                arguments.put(pvField.getFieldName(), ((PVString) pvField).get().trim());
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * Queues a record for writing, dropping it if the queue is full.
+     *
+     * @param entry the record
+     */
+    void log(Entry entry) {
+        if (!queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the queued records and stops the writer thread.
+     */
+    void close() {
+        try {
+            queue.put(STOP);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Entry e = queue.poll();
+                if (e == null) {
+                    flush();
+                    e = queue.take();
+                }
+                if (e == STOP) {
+                    break;
+                }
+                try {
+                    encode(e);
+                } catch (IOException ex) {
+                    dropped.incrementAndGet();      // e.g. an argument longer than 64 kB
+                    continue;
+                }
+                try {
+                    writeRecord();
+                    written.incrementAndGet();
+                } catch (IOException ex) {
+                    dropped.incrementAndGet();
+                    System.err.println("Writing the access log " + file + " failed: " + ex.getMessage());
+                    closeFile();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFile();
+        }
+    }
+
+    /* Encodes a record into the buffer, so that only complete records reach the file */
+    private void encode(Entry e) throws IOException {
+        buffer.reset();
+        record.writeLong(e.time);
+        record.writeInt(e.micros);
+        record.writeInt(e.rows);
+        record.writeByte(e.outcome);
+        record.writeUTF(e.client);
+        record.writeShort(e.arguments.size());
+        for (Map.Entry<String, String> arg : e.arguments.entrySet()) {
+            record.writeUTF(arg.getKey());
+            record.writeUTF(arg.getValue());
+        }
+        record.flush();
+    }
+
+    private void writeRecord() throws IOException {
+        if (out != null && size >= maxBytes) {
+            closeFile();
+            rotate();
+        }
+        if (out == null) {
+            if (file.length() > 0) {
+                rotate();   // Its last record may be incomplete
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            size = 4;
+        }
+        buffer.writeTo(out);
+        size += buffer.size();
+    }
+
+    private void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Writing the access log " + file + " failed: " + e.getMessage());
+                closeFile();
+            }
+        }
+    }
+
+    private void rotate() {
+        new File(file.getPath() + "." + files).delete();
+        for (int i = files - 1; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        if (files > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        _dbg("Rotated " + file);
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Reads a log file and its rotated predecessors, oldest first.
+     * A truncated last record (e.g. after a crash) is ignored.
+     *
+     * @param file the log file
+     * @return the records
+     * @throws IOException if a file cannot be read or is not an access log
+     */
+    static List<Entry> readAll(File file) throws IOException {
+        List<File> logs = new ArrayList<File>();
+        for (int i = 1; new File(file.getPath() + "." + i).exists(); i++) {
+            logs.add(0, new File(file.getPath() + "." + i));
+        }
+        if (file.exists() || logs.isEmpty()) {
+            logs.add(file);
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for (File f : logs) {
+            read(f, entries);
+        }
+        return entries;
+    }
+
+    private static void read(File f, List<Entry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        try {
+            if (f.length() == 0) {
+                return;
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not a ds access log");
+            }
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                int micros = in.readInt();
+                int rows = in.readInt();
+                byte outcome = in.readByte();
+                String client = in.readUTF();
+                int n = in.readUnsignedShort();
+                Map<String, String> arguments = new TreeMap<String, String>();
+                for (int i = 0; i < n; i++) {
+                    arguments.put(in.readUTF(), in.readUTF());
+                }
+                entries.add(new Entry(time, client, arguments, micros, rows, outcome));
+            }
+        } catch (EOFException e) {
+            _dbg("Ignoring truncated record at the end of " + f);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + AccessLog.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
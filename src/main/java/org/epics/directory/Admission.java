@@ -0,0 +1,341 @@
+/**
+ * Admission decides whether and with which priority a request is executed.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.pvaccess.server.rpc.RPCRequestException;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVScalarArray;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.Status;
+
+/**
+ * Admission protects interactive clients (e.g. control room panels) from
+ * expensive requests (e.g. scripts dumping the whole directory).
+ *
+ * The cost of a request is estimated as the number of rows of its result:
+ * from the result sizes recently seen for the same query string, or from the
+ * query shape for a query that has not been seen yet (a query without any
+ * literal characters is assumed to return the whole directory). A limit caps
+ * the estimate. Requests estimated above the batch threshold are batch requests,
+ * all others are interactive.
+ *
+ * Admission then
+ * <ul>
+ * <li>limits the number of requests in progress and the request rate of each client,
+ * <li>limits the number of batch requests in progress, rejecting further ones
+ *     immediately instead of letting them delay everybody else,
+ * <li>assigns each request an order key for the worker queue: batch requests are
+ *     queued as if they had arrived later by the batch delay, so that interactive
+ *     requests overtake them, but a batch request is not held back forever.
+ * </ul>
+ * A rejected request fails with an error status whose message says when to retry.
+ *
+ * Clients are identified by the client argument of a request. The RPC API does
+ * not tell which connection a request came from, so requests without a client
+ * argument cannot be told apart: they are not subject to the per-client limits,
+ * only to the limits on batch requests (and to the bound of the worker queue).
+ * Otherwise all anonymous callers would share the limits of one client.
+ */
+final class Admission {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final int MAX_CLIENTS = 10000;
+    private static final int MAX_HISTORY = 10000;
+    private static final double HISTORY_WEIGHT = 0.25;  // weight of the latest result size
+
+    static final int INTERACTIVE = 0;
+    static final int BATCH = 1;
+
+    private final int clientConcurrency;
+    private final double clientRate;
+    private final long batchRows;
+    private final int batchConcurrency;
+    private final long batchDelay;
+
+    private final Map<String, Client> clients = new LinkedHashMap<String, Client>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Client> eldest) {
+            return size() > MAX_CLIENTS && eldest.getValue().active == 0;
+        }
+    };
+    private final Map<String, double[]> history = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > MAX_HISTORY;
+        }
+    };
+    private int batchActive = 0;
+    private double batchMillis = 1000.0;
+
+    final AtomicLong throttled = new AtomicLong();
+    final AtomicLong shed = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Client holds the admission state of one client.
+     */
+    private static final class Client {
+        int active = 0;
+        double tokens;
+        long refill = System.nanoTime();
+
+        Client(double burst) {
+            tokens = burst;
+        }
+    }
+
+    /**
+     * Ticket is the admission of one request. It must be released when
+     * the work for the request has ended (which may be after the request
+     * has been answered, e.g. when its deadline expired).
+     */
+    static final class Ticket {
+        private final Client client;
+        private final int priority;
+        private final long order;
+        private final long admitted = System.nanoTime();
+        private boolean released = false;
+
+        /* client is null for anonymous requests */
+        Ticket(Client client, int priority, long order) {
+            this.client = client;
+            this.priority = priority;
+            this.order = order;
+        }
+
+        /**
+         * @return INTERACTIVE or BATCH
+         */
+        int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the key ordering the request in the worker queue (lower is earlier)
+         */
+        long getOrder() {
+            return order;
+        }
+    }
+
+    /**
+     * @param clientConcurrency maximum number of requests in progress per client (0 = unlimited)
+     * @param clientRate maximum number of requests per second per client (0 = unlimited)
+     * @param batchRows estimated number of rows above which a request is a batch request
+     * @param batchConcurrency maximum number of batch requests in progress
+     * @param batchDelay time (in milliseconds) batch requests are queued behind interactive ones
+     */
+    Admission(int clientConcurrency, double clientRate, long batchRows, int batchConcurrency, long batchDelay) {
+        this.clientConcurrency = clientConcurrency;
+        this.clientRate = clientRate;
+        this.batchRows = batchRows;
+        this.batchConcurrency = Math.max(batchConcurrency, 1);
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Creates the admission control configured by the system properties
+     * ds.admission.clientConcurrency, ds.admission.clientRate, ds.admission.batchRows,
+     * ds.admission.batchConcurrency and ds.admission.batchDelay.
+     *
+     * @param threads number of worker threads
+     * @return the admission control
+     */
+    static Admission create(int threads) {
+        return new Admission(Integer.getInteger("ds.admission.clientConcurrency", 8),
+                Double.parseDouble(System.getProperty("ds.admission.clientRate", "0")),
+                Long.getLong("ds.admission.batchRows", 10000),
+                Integer.getInteger("ds.admission.batchConcurrency", Math.max(threads / 4, 1)),
+                Long.getLong("ds.admission.batchDelay", 2000));
+    }
+
+    /**
+     * Admits a request.
+     *
+     * @param clientName the client identity, or null for an anonymous request
+     * @param queries the queries of the request (null elements for requests that could not be parsed)
+     * @return the ticket of the request
+     * @throws RPCRequestException if the request is rejected
+     */
+    synchronized Ticket admit(String clientName, List<DSQuery> queries) throws RPCRequestException {
+        long rows = 0;
+        for (DSQuery q : queries) {
+            rows += estimate(q);
+        }
+        int priority = rows > batchRows ? BATCH : INTERACTIVE;
+
+        Client client = null;
+        if (clientName != null) {
+            client = clients.get(clientName);
+            if (client == null) {
+                client = new Client(Math.max(clientRate, 1.0));
+                clients.put(clientName, client);
+            }
+            if (clientConcurrency > 0 && client.active >= clientConcurrency) {
+                throttled.incrementAndGet();
+                throw rejection("Client " + clientName + " has " + client.active + " requests in progress",
+                        1000);
+            }
+            if (clientRate > 0) {
+                long now = System.nanoTime();
+                double burst = Math.max(clientRate, 1.0);
+                client.tokens = Math.min(burst, client.tokens + (now - client.refill) * clientRate / 1e9);
+                client.refill = now;
+                if (client.tokens < 1.0) {
+                    throttled.incrementAndGet();
+                    throw rejection("Client " + clientName + " exceeds " + clientRate + " requests/s",
+                            (long) Math.ceil((1.0 - client.tokens) * 1000 / clientRate));
+                }
+            }
+        }
+        if (priority == BATCH && batchActive >= batchConcurrency) {
+            shed.incrementAndGet();
+            throw rejection("Too many expensive requests in progress (" + batchActive + ")",
+                    (long) batchMillis);
+        }
+
+        /* Admitted: only now the request uses up a rate token and its slots */
+        if (client != null) {
+            if (clientRate > 0) {
+                client.tokens -= 1.0;
+            }
+            client.active++;
+        }
+        if (priority == BATCH) {
+            batchActive++;
+            batches.incrementAndGet();
+        }
+        long order = System.nanoTime()
+                + (priority == BATCH ? TimeUnit.MILLISECONDS.toNanos(batchDelay) : 0);
+        _dbg("Admitted " + (priority == BATCH ? "batch" : "interactive") + " request from " + clientName
+                + ", about " + rows + " rows expected");
+        return new Ticket(client, priority, order);
+    }
+
+    /**
+     * Releases the ticket of a request whose work has ended. Further calls have no effect.
+     *
+     * @param ticket the ticket
+     */
+    synchronized void release(Ticket ticket) {
+        if (ticket.released) {
+            return;
+        }
+        ticket.released = true;
+        if (ticket.client != null) {
+            ticket.client.active--;
+        }
+        if (ticket.priority == BATCH) {
+            batchActive--;
+            double millis = (System.nanoTime() - ticket.admitted) / 1e6;
+            batchMillis += HISTORY_WEIGHT * (millis - batchMillis);
+        }
+    }
+
+    /**
+     * Records the size of the result of a query, for estimating later requests.
+     *
+     * @param query the query
+     * @param result the NTTable result
+     */
+    void record(DSQuery query, PVStructure result) {
+        if (query == null || query.getLimit() > 0 || query.getSince() != null) {
+            return;     // Size of a page or of changes says little about the query
+        }
+        int rows = rowCount(result);
+        synchronized (this) {
+            double[] h = history.get(query.getQuery());
+            if (h == null) {
+                history.put(query.getQuery(), new double[] {rows});
+            } else {
+                h[0] += HISTORY_WEIGHT * (rows - h[0]);
+            }
+        }
+    }
+
+    /* Estimates the number of rows of a query (called with the lock held) */
+    private long estimate(DSQuery query) {
+        if (query == null) {
+            return 0;
+        }
+        long rows;
+        double[] h = history.get(query.getQuery());
+        if (h != null) {
+            rows = (long) h[0];
+        } else if (isUnrestricted(query.getQuery())) {
+            rows = batchRows + 1;
+        } else {
+            rows = 0;
+        }
+        if (query.getLimit() > 0) {
+            rows = Math.min(rows, query.getLimit());
+        }
+        return rows;
+    }
+
+    /* A query without any literal characters matches the whole directory */
+    private static boolean isUnrestricted(String query) {
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c != '*' && c != '?' && c != '=' && !Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static RPCRequestException rejection(String reason, long retryMillis) {
+        long seconds = Math.max(1, (retryMillis + 999) / 1000);
+        return new RPCRequestException(Status.StatusType.ERROR,
+                reason + ", please retry after " + seconds + " s");
+    }
+
+    /**
+     * @param result an NTTable
+     * @return number of rows of the table
+     */
+    static int rowCount(PVStructure result) {
+        PVStructure pvValue = result != null ? result.getStructureField("value") : null;
+        if (pvValue == null) {
+            return 0;
+        }
+        PVField[] columns = pvValue.getPVFields();
+        return columns.length > 0 && columns[0] instanceof PVScalarArray
+                ? ((PVScalarArray) columns[0]).getLength() : 0;
+    }
+
+    /**
+     * @return number of batch requests in progress
+     */
+    synchronized int getBatchActive() {
+        return batchActive;
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + Admission.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * CFChannelSource gets channels from the ChannelFinder web service.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.ChannelFinderClient;
+import gov.bnl.channelfinder.api.ChannelFinderClientImpl;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CFChannelSource passes queries on to the ChannelFinder web service,
+ * using the ChannelFinderAPI client library.
+ *
+ * The ChannelFinder client is created on first use, and shared by all threads.
+ * Its HTTP connections are kept alive and reused (the JDK HTTP client keeps up to
+ * ds.cf.maxConnections idle connections per server), and connecting and reading
+ * time out after ds.cf.connectTimeout and ds.cf.readTimeout milliseconds.
+ *
+ * Calls to ChannelFinder are bounded:
+ * <ul>
+ * <li>at most ds.cf.concurrency queries run at the same time; further queries
+ *     wait up to the call timeout for a free slot, then fail,</li>
+ * <li>a query that has not returned after the call timeout fails, so that
+ *     a hanging ChannelFinder does not block the worker threads; its slot stays
+ *     taken until the ChannelFinder call really ends (at the latest after the
+ *     read timeout),</li>
+ * <li>after ds.cf.breaker.failures consecutive failures, queries fail
+ *     immediately for ds.cf.breaker.openTime milliseconds (see CircuitBreaker).</li>
+ * </ul>
+ */
+class CFChannelSource implements ChannelSource {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final int PENDING = 0;       // Call states
+    private static final int RUNNING = 1;
+    private static final int ABANDONED = 2;
+    private volatile ChannelFinderClient cfClient = null;
+
+    private final String url;
+    private final int concurrency;
+    private final long timeout;
+    private final Semaphore permits;
+    private final CircuitBreaker breaker;
+    private final ExecutorService calls = Executors.newCachedThreadPool(new NamedThreadFactory("ds-cf-call"));
+
+    /**
+     * Creates a ChannelFinder source configured by the ds.cf.* system properties.
+     *
+     * @param timeout maximum time (in milliseconds) a query may take
+     */
+    CFChannelSource(long timeout) {
+        this(null, timeout);
+    }
+
+    /**
+     * Creates a source for a ChannelFinder instance, configured by the ds.cf.* system properties.
+     *
+     * @param url the URL of the ChannelFinder web service (null = from the ChannelFinderAPI configuration)
+     * @param timeout maximum time (in milliseconds) a query may take
+     */
+    CFChannelSource(String url, long timeout) {
+        this(url, null, Integer.getInteger("ds.cf.concurrency", 4), timeout,
+                new CircuitBreaker(Integer.getInteger("ds.cf.breaker.failures", 5),
+                        Long.getLong("ds.cf.breaker.openTime", 30000L)));
+        configureHttp();
+    }
+
+    /**
+     * Creates a ChannelFinder source.
+     *
+     * @param client the ChannelFinder client to use (null = create on first use)
+     * @param concurrency maximum number of queries running at the same time
+     * @param timeout maximum time (in milliseconds) a query may take
+     * @param breaker the circuit breaker guarding the calls
+     */
+    CFChannelSource(ChannelFinderClient client, int concurrency, long timeout, CircuitBreaker breaker) {
+        this(null, client, concurrency, timeout, breaker);
+    }
+
+    private CFChannelSource(String url, ChannelFinderClient client, int concurrency, long timeout,
+            CircuitBreaker breaker) {
+        this.url = url;
+        this.cfClient = client;
+        this.concurrency = concurrency;
+        this.timeout = timeout;
+        this.permits = new Semaphore(concurrency, true);
+        this.breaker = breaker;
+    }
+
+    /*
+     * The ChannelFinder client uses the JDK HTTP client, which is configured
+     * by (process wide) system properties. Explicit settings are not overridden.
+     */
+    private static void configureHttp() {
+        setDefault("http.keepAlive", "true");
+        setDefault("http.maxConnections", System.getProperty("ds.cf.maxConnections", "8"));
+        setDefault("sun.net.client.defaultConnectTimeout", System.getProperty("ds.cf.connectTimeout", "5000"));
+        setDefault("sun.net.client.defaultReadTimeout", System.getProperty("ds.cf.readTimeout", "30000"));
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    private synchronized ChannelFinderClient connect() {
+        if (cfClient == null) {
+            /* The default client executor runs one request at a time */
+            ChannelFinderClientImpl.CFCBuilder builder = url == null
+                    ? ChannelFinderClientImpl.CFCBuilder.serviceURL()
+                    : ChannelFinderClientImpl.CFCBuilder.serviceURL(url);
+            ChannelFinderClient client = builder
+                    .withExecutor(Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("ds-cf-client")))
+                    .create();
+            if (client != null) {
+                _dbg("Successfully created ChannelFinder web service client" + (url == null ? "" : " for " + url));
+            } else {
+                throw new IllegalStateException("Unable to create ChannelFinder web service client");
+            }
+            cfClient = client;
+        }
+        return cfClient;
+    }
+
+    @Override
+    public Collection<Channel> find(final String query) {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for ChannelFinder");
+        }
+        if (!acquired) {
+            throw new IllegalStateException("ChannelFinder is busy (" + concurrency
+                    + " queries in progress), please retry later");
+        }
+        if (!breaker.allow()) {
+            permits.release();
+            throw new IllegalStateException("ChannelFinder is unavailable after " + breaker.getFailures()
+                    + " failed queries, next attempt in " + (breaker.getRetryDelay() + 999) / 1000 + " s");
+        }
+
+        /*
+         * The slot is released when the call ends, even if the caller stopped waiting.
+         * A call abandoned before it started never runs, and its slot is released by the caller.
+         */
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        Future<Collection<Channel>> call;
+        try {
+            call = calls.submit(new Callable<Collection<Channel>>() {
+                @Override
+                public Collection<Channel> call() {
+                    if (!state.compareAndSet(PENDING, RUNNING)) {
+                        return null;
+                    }
+                    try {
+                        ChannelFinderClient client = cfClient;
+                        if (client == null) {
+                            client = connect();
+                        }
+                        return client.find(query);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            breaker.failure();
+            throw e;
+        }
+
+        try {
+            Collection<Channel> channels = call.get(timeout, TimeUnit.MILLISECONDS);
+            breaker.success();
+            return channels;
+        } catch (TimeoutException e) {
+            abandon(call, state);
+            breaker.failure();
+            throw new IllegalStateException("ChannelFinder did not answer within " + timeout + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException) {
+                breaker.success();  // Invalid query, ChannelFinder did answer
+            } else {
+                breaker.failure();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            abandon(call, state);
+            breaker.failure();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for ChannelFinder");
+        }
+    }
+
+    /*
+     * Stops waiting for a call. A call that has not started yet is cancelled and its slot
+     * released. A running call is not interrupted: the HTTP request is executed by the
+     * ChannelFinder client's own threads and would go on anyway, so the call keeps
+     * its slot until the request ends.
+     */
+    private void abandon(Future<Collection<Channel>> call, AtomicInteger state) {
+        if (state.compareAndSet(PENDING, ABANDONED)) {
+            call.cancel(false);
+            permits.release();
+        }
+    }
+
+    /**
+     * @return number of queries currently running
+     */
+    int getActive() {
+        return concurrency - permits.availablePermits();
+    }
+
+    /**
+     * @return the circuit breaker guarding the calls
+     */
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public String toString() {
+        return "CFChannelSource: " + (url == null ? "" : url + ", ") + getActive() + " queries in progress, " + breaker;
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + CFChannelSource.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
@@ -16,334 +16,383 @@ package org.epics.directory;
  */
 
 import gov.bnl.channelfinder.api.Channel;
-import gov.bnl.channelfinder.api.ChannelFinder;
-import gov.bnl.channelfinder.api.ChannelFinderClient;
-import gov.bnl.channelfinder.api.ChannelUtil;
-import gov.bnl.channelfinder.api.Property;
-import gov.bnl.channelfinder.api.Tag;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.File;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.epics.pvdata.factory.FieldFactory;
-import org.epics.pvdata.factory.PVDataFactory;
-import org.epics.pvdata.pv.FieldBuilder;
-import org.epics.pvdata.pv.FieldCreate;
-import org.epics.pvdata.pv.PVBooleanArray;
-import org.epics.pvdata.pv.PVDataCreate;
-import org.epics.pvdata.pv.PVField;
-import org.epics.pvdata.pv.PVString;
-import org.epics.pvdata.pv.PVStringArray;
 import org.epics.pvdata.pv.PVStructure;
-import org.epics.pvdata.pv.ScalarArray;
-import org.epics.pvdata.pv.ScalarType;
 
 /**
  * CFConnector retrieves data from the ChannelFinder web service.
  *
- * CFConnector expects arguments of the following form:
+ * The channels are taken from a ChannelSource: the ChannelFinder web service
+ * or a federation of several instances (see FederatedChannelSource), optionally
+ * through a replicated local copy (see ChannelDirectory), or a file (see FileChannelSource).
+ *
+ * CFConnector expects arguments of the following form (all strings,
+ * parsed by DSQuery; see the service documentation for details):
  * <pre>
- *     string query      - The query for which to get data from the relational database,
- *                          eg "SwissFEL:alldevices"
- *     string parameters  - No parameters are supported by cfService at present. When
- *                          functionality like text replacement is added, this argument
- *                          will be used.
+ *     query     - The ChannelFinder query, e.g. "SR:C01-MG:G06*" (required)
+ *     show      - Comma separated list of the properties and tags to return
+ *     sort      - Comma separated list of the properties to sort by,
+ *                 each optionally followed by ":num" and/or ":desc"
+ *     filter    - Comma separated conditions on property values, e.g. "pos&gt;=100,pos&lt;200"
+ *     owner     - If present, the channel owners are returned
+ *     offset    - Number of rows to skip
+ *     limit     - Maximum number of rows to return
+ *     since     - Change token: only the changes since that token are returned
+ *     encoding  - "plain" (default) or "dict" (dictionary encoded columns)
+ *     types     - Types of the property columns, e.g. "pos:double,auto"
  * </pre>
+ * Other arguments (e.g. the client identity used by DSService) are ignored.
  *
  * It returns a PVStructure of normative type NTTable.
  *
+ * A single CFConnector instance serves all concurrent requests: the per-request
+ * state (parsed arguments, sort order, column data) lives on the stack, and the
+ * shared state (result cache, requests in progress, channel source) is thread safe.
+ *
  * @author Ralph Lange (Ralph.Lange@gmx.de)
  *
  */
 
-class ChannelComparator implements Comparator<Channel> {
+public class CFConnector implements DSConnector {
+
+    private static final boolean DEBUG = false; // Print debug info
+
+    private final ResultCache cache;
+    private final ChannelSource source;
+    private final DSMetrics metrics = new DSMetrics();
 
-    private static List<String> sortProperties;
+    private final ConcurrentHashMap<DSQuery, FutureTask<PVStructure>> inFlight =
+            new ConcurrentHashMap<DSQuery, FutureTask<PVStructure>>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong partial = new AtomicLong();
+    private volatile boolean fetchFailed = false;
 
-    ChannelComparator(List<String> prop) {
-        sortProperties = prop;
+    /**
+     * Creates a connector to the ChannelFinder web service.
+     * 
+     * If the system property ds.replicate is set to true, the connector keeps
+     * a local copy of the complete directory (see ChannelDirectory), which is
+     * refreshed every ds.replicate.period milliseconds, and answers queries
+     * from that copy. If ds.replicate.snapshot names a file, the copy is saved
+     * to that file and loaded from it at startup.
+     * If the system property ds.cf.backends lists several ChannelFinder instances,
+     * queries are sent to all of them and the results are merged.
+     */
+    public CFConnector() {
+        this(createSource());
     }
 
-    @Override
-    public int compare(Channel c1, Channel c2) {
-        for (String prop : sortProperties) {
-            Property p1 = c1.getProperty(prop);
-            Property p2 = c2.getProperty(prop);
+    /**
+     * Creates a connector answering queries from the given channel source,
+     * with a result cache configured by the ds.cache.* system properties.
+     *
+     * @param source the source of the channels
+     */
+    CFConnector(ChannelSource source) {
+        this(source, new ResultCache(
+                Integer.getInteger("ds.cache.maxEntries", 1000),
+                Long.getLong("ds.cache.maxBytes", 64L * 1024 * 1024),
+                Long.getLong("ds.cache.ttl", 5000L),
+                Long.getLong("ds.cache.staleTtl", 300000L)));
+    }
 
-            if (p1 == null) {
-                if (p2 != null) {
-                    return -1;
+    /**
+     * Creates a connector answering queries from the given channel source.
+     *
+     * @param source the source of the channels
+     * @param cache the result cache to use
+     */
+    CFConnector(ChannelSource source, final ResultCache cache) {
+        this.source = source;
+        this.cache = cache;
+
+        metrics.gauge("requests.coalesced", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return coalesced.get();
+            }
+        });
+        metrics.gauge("requests.partial", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return partial.get();
+            }
+        });
+        metrics.gauge("cache.hits", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cache.getHits();
+            }
+        });
+        metrics.gauge("cache.misses", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cache.getMisses();
+            }
+        });
+        metrics.gauge("cache.evictions", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cache.getEvictions();
+            }
+        });
+        metrics.gauge("cache.entries", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cache.size();
+            }
+        });
+        metrics.gauge("cache.bytes", "bytes", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cache.getBytes();
+            }
+        });
+        metrics.gauge("cache.stale", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cache.getStaleHits();
+            }
+        });
+        metrics.gauge("table.structures", "", new DSMetrics.Gauge() {
+            @Override
+            public long get() {
+                return TableStructures.size();
+            }
+        });
+        if (source instanceof CFChannelSource) {
+            final CFChannelSource cf = (CFChannelSource) source;
+            metrics.gauge("cf.active", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return cf.getActive();
                 }
-            } else {
-                if (p2 == null) {
-                    return 1;
-                } else {
-                    int cmp = p1.getValue().compareTo(p2.getValue());
-                    if (cmp != 0) {
-                        return cmp;
-                    }
+            });
+            metrics.gauge("cf.breaker.open", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return cf.getBreaker().isOpen() ? 1 : 0;
                 }
-            }
+            });
+            metrics.gauge("cf.breaker.refused", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return cf.getBreaker().getRefused();
+                }
+            });
         }
-        return 0;
     }
-}
 
-public class CFConnector {
+    private static ChannelSource createSource() {
+        if (Boolean.getBoolean("ds.replicate")) {
+            /* Fetching the complete directory takes longer than a query */
+            ChannelSource cf = createRemote(Long.getLong("ds.replicate.timeout", 300000L));
+            String snapshot = System.getProperty("ds.replicate.snapshot");
+            ChannelDirectory directory = new ChannelDirectory(cf,
+                    createRemote(Long.getLong("ds.cf.timeout", 10000L)),
+                    Long.getLong("ds.replicate.period", 60000L),
+                    Integer.getInteger("ds.replicate.changes", 100000),
+                    snapshot != null && snapshot.length() > 0 ? new File(snapshot) : null,
+                    Long.getLong("ds.replicate.snapshotMaxAge", 7L * 24 * 3600 * 1000));
+            return directory;
+        }
+        return createRemote(Long.getLong("ds.cf.timeout", 10000L));
+    }
 
-    private static final boolean DEBUG = false; // Print debug info
-    private static ChannelFinderClient cfClient = null;
-    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
-    private static final PVDataCreate pvDataCreate = PVDataFactory.getPVDataCreate();
+    private static ChannelSource createRemote(long timeout) {
+        String backends = System.getProperty("ds.cf.backends");
+        if (backends != null && backends.trim().length() > 0) {
+            return FederatedChannelSource.create(backends, timeout);
+        }
+        return new CFChannelSource(timeout);
+    }
 
-    private void connect() {
-        cfClient = ChannelFinder.getClient();
-        if (cfClient != null) {
-            _dbg("Successfully created ChannelFinder web service client");
-        } else {
-            throw new IllegalStateException("Unable to create ChannelFinder web service client");
+    /**
+     * Starts the channel source: a replicated directory starts loading,
+     * a file is loaded.
+     */
+    @Override
+    public void start() {
+        if (source instanceof ChannelDirectory) {
+            ((ChannelDirectory) source).start();
+        } else if (source instanceof FileChannelSource) {
+            ((FileChannelSource) source).load();
         }
     }
 
-    private List<String> removeDoubles(List<String> l) {
-        Set<String> s = new LinkedHashSet<String>(l);
-        return new ArrayList<String>(s);
+    /**
+     * Stops refreshing a replicated directory.
+     */
+    @Override
+    public void stop() {
+        if (source instanceof ChannelDirectory) {
+            ((ChannelDirectory) source).stop();
+        }
+    }
+
+    /**
+     * A replicated directory or a file is healthy once it has been loaded
+     * (a replicated directory keeps answering while ChannelFinder is unavailable);
+     * otherwise the connector is healthy unless the last ChannelFinder query failed.
+     *
+     * @return true if the connector is able to answer queries
+     */
+    @Override
+    public boolean isHealthy() {
+        if (source instanceof ChannelDirectory) {
+            return ((ChannelDirectory) source).isLoaded();
+        } else if (source instanceof FileChannelSource) {
+            return ((FileChannelSource) source).isLoaded();
+        }
+        return !fetchFailed;
     }
-    
+
     /**
      * getData performs a query on the ChannelFinder directory service.
      * 
+     * Results are kept in a cache for a short time (see ResultCache),
+     * so that identical requests arriving in bursts are answered without
+     * contacting ChannelFinder again.
+     * Identical requests arriving while the result is being retrieved
+     * wait for that retrieval and share its result (or its exception).
+     * 
      * @param args pvData structure holding the arguments
      * @return NTTable structure with the results
      */
+    @Override
     public PVStructure getData(PVStructure args) {
-        PVString pvStringArg;
-        String query;
-        List<String> show = null;
-        boolean useShowFilter = false;
-        List<String> sort = null;
-        boolean showOwner = false;
-        
-        if (cfClient == null) {
-            connect();
-        }
-        
-        // Parsing arguments
-        
-        pvStringArg = args.getStringField("query");
-        if (pvStringArg == null) {
-            throw new IllegalArgumentException("No query in argument list");
-        }
-        query = pvStringArg.get();
-        _dbg("Got request, query=" + query);
-        
-        pvStringArg = args.getStringField("show");
-        if (pvStringArg != null) {
-            show = new ArrayList<String>(Arrays.asList(pvStringArg.get().split(",")));
-            show.add("channel");
-            show = removeDoubles(show);
-            useShowFilter = true;
-            _dbg("  Arg show=" + show.toString());
-        }
-        
-        pvStringArg = args.getStringField("sort");
-        if (pvStringArg != null) {
-            sort = new ArrayList<String>(Arrays.asList(pvStringArg.get().split(",")));
-            sort = removeDoubles(sort);
-            _dbg("  Arg sort=" + sort.toString());
-        }
-        
-        pvStringArg = args.getStringField("owner");
-        if (pvStringArg != null) {
-            showOwner = true;
-            _dbg("  Arg owner");
-        }
-        
-        Collection<Channel> channels;
-        List<String> properties;
-        List<String> tags;
-        int nChan;
+        return getData(DSQuery.parse(args));
+    }
+
+    /**
+     * getData performs a query on the ChannelFinder directory service.
+     *
+     * @param dsQuery the parsed request arguments
+     * @return NTTable structure with the results
+     */
+    PVStructure getData(final DSQuery dsQuery) {
+        _dbg("Got request, " + dsQuery);
 
-        HashMap<String, String[]> propColumns = new HashMap<String, String[]>();
-        HashMap<String, boolean[]> tagColumns = new HashMap<String, boolean[]>();
-        String[] chanColumn;
-        String[] ownerColumn;
+        PVStructure pvTop = cache.get(dsQuery);
+        if (pvTop != null) {
+            _dbg("Returning cached result (" + cache + ")");
+            return pvTop;
+        }
 
-        /* Do the ChannelFinder query */
-        channels = cfClient.find(query);
-        
-        if (channels != null) {
-            if (sort != null) {
-                ChannelComparator comp = new ChannelComparator(sort);
-                ArrayList<Channel> sortedCh = new ArrayList<Channel>(channels);
-                Collections.sort(sortedCh, comp);
-                channels = sortedCh;
+        FutureTask<PVStructure> task = new FutureTask<PVStructure>(new Callable<PVStructure>() {
+            @Override
+            public PVStructure call() {
+                PVStructure pvTable = getTable(dsQuery);
+                /* A partial result is not cached, so that the next request gets the complete one */
+                if (ChannelTable.getPartialMessage(pvTable) == null) {
+                    cache.put(dsQuery, pvTable);
+                }
+                return pvTable;
+            }
+        });
+        FutureTask<PVStructure> running = inFlight.putIfAbsent(dsQuery, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(dsQuery, task);
             }
-            nChan = channels.size();
-            properties = new ArrayList<String>(
-                            ChannelUtil.getPropertyNames(channels));
-            tags = new ArrayList<String>(ChannelUtil.getAllTagNames(channels));
-            _dbg("ChannelFinder returned " + nChan + " channels with "
-                    + properties.size() + " properties and " + tags.size() + " tags");
         } else {
-            nChan = 0;
-            _dbg("ChannelFinder returned no channels");
-            properties = Collections.emptyList();
-            tags = Collections.emptyList();
-        }
-
-        /* Filter out no-show columns */
-        if (useShowFilter) {
-            properties.retainAll(show);
-            tags.retainAll(show);
-            _dbg("After no-show filtering remain " + properties.size() + " properties and " + tags.size() + " tags");
-        }
-        
-        /* Create the empty columns data arrays */
-        chanColumn  = new String[nChan];
-        ownerColumn = new String[nChan];
-        for (String prop : properties) {
-            propColumns.put(prop, new String[nChan]);
-        }
-        for (String tag : tags) {
-            tagColumns.put(tag, new boolean[nChan]);
+            coalesced.incrementAndGet();
+            _dbg("Waiting for identical request in progress");
         }
-        int noCols = 1 + properties.size() + tags.size();  // channel properties tags
-        if (showOwner) {
-            noCols++;
-        }
-        _dbg("Reply contains " + noCols + " columns");
 
-        /* Loop through the channels, setting the appropriate fields in the column data */
-        int i = 0;
-        for (Channel chan : channels) {
-            chanColumn[i] = chan.getName();
-            if (showOwner) {
-                ownerColumn[i] = chan.getOwner();
-            }
-            for (Property prop : chan.getProperties()) {
-                String s = prop.getName();
-                if (!useShowFilter || properties.contains(s)) {
-                    String[] col = propColumns.get(s);
-                    col[i] = prop.getValue();
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (!(cause instanceof IllegalArgumentException)) {
+                /* The source failed: an outdated result is better than none */
+                PVStructure stale = cache.getStale(dsQuery);
+                if (stale != null) {
+                    _dbg("Returning stale result after failure: " + cause);
+                    return stale;
                 }
             }
-            for (Tag tag : chan.getTags()) {
-                String s = tag.getName();
-                if (!useShowFilter || tags.contains(s)) {
-                    boolean[] col = tagColumns.get(s);
-                    col[i] = true;
-                }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
-            i++;
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for query result");
         }
+    }
 
-        /* Create the labels */
-        List<String> labels = new ArrayList<String>(noCols);
-        
-        /* Create the value fields */
-        List<Object> valueFieldsData = new ArrayList<Object>();
-        
-        /* Construct the return data NTTable */
-        FieldBuilder topBuilder = fieldCreate.createFieldBuilder();
-        topBuilder.setId("epics:nt/NTTable:1.0");
-        topBuilder.addArray("labels", ScalarType.pvString);
-        
-        FieldBuilder valueNestedBuilder = topBuilder.addNestedStructure("value");
+    /**
+     * @return number of requests that were answered by waiting for an identical request in progress
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
 
-        ScalarArray stringColumnField = fieldCreate.createScalarArray(ScalarType.pvString);
-        ScalarArray booleanColumnField = fieldCreate.createScalarArray(ScalarType.pvBoolean);
-        
-        Integer col = 0;
-        
-        /* Add channel column */
-        if (nChan > 0) {
-            valueNestedBuilder.add("c"+col.toString(), stringColumnField);
-            valueFieldsData.add(chanColumn);
-            col++;
-            labels.add("channel");
-        }
+    /**
+     * @return the result cache of this connector
+     */
+    ResultCache getCache() {
+        return cache;
+    }
 
-        /* Add owner column */
-        if (showOwner && nChan > 0) {
-            valueNestedBuilder.add("c"+col.toString(), stringColumnField);
-            valueFieldsData.add(ownerColumn);
-            col++;
-            labels.add("@owner");
-        }
+    /**
+     * @return the statistics of this connector
+     */
+    DSMetrics getMetrics() {
+        return metrics;
+    }
 
-        /* Add properties columns */
-        if (useShowFilter) {
-            for (String prop : show) {
-                if (properties.contains(prop)) {
-                    valueNestedBuilder.add("c"+col.toString(), stringColumnField);
-                    valueFieldsData.add(propColumns.get(prop));
-                    col++;
-                    labels.add(prop);
-                }
-            }
-        } else {
-            for (String prop : properties) {
-                valueNestedBuilder.add("c"+col.toString(), stringColumnField);
-                valueFieldsData.add(propColumns.get(prop));
-                col++;
-                labels.add(prop);
-            }
+    private PVStructure getTable(DSQuery dsQuery) {
+        if (dsQuery.getSince() != null) {
+            return getChangesTable(dsQuery);
         }
 
-        /* Add tags columns */
-        if (useShowFilter) {
-            for (String tag : show) {
-                if (tags.contains(tag)) {
-                    valueNestedBuilder.add("c"+col.toString(), booleanColumnField);
-                    valueFieldsData.add(tagColumns.get(tag));
-                    col++;
-                    labels.add(tag);
-                }
-            }
-        } else {
-            for (String tag : tags) {
-                valueNestedBuilder.add("c"+col.toString(), booleanColumnField);
-                valueFieldsData.add(tagColumns.get(tag));
-                col++;
-                labels.add(tag);
-            }
+        /* Do the ChannelFinder query */
+        long start = System.nanoTime();
+        Collection<Channel> channels;
+        try {
+            channels = source.find(dsQuery.getQuery());
+            fetchFailed = false;
+        } catch (IllegalArgumentException e) {
+            throw e;    // Invalid query, not a failure of the source
+        } catch (RuntimeException e) {
+            fetchFailed = true;
+            throw e;
+        }
+        metrics.fetch.record(DSMetrics.micros(start));
+        if (channels instanceof FederatedChannelSource.Result
+                && ((FederatedChannelSource.Result) channels).isPartial()) {
+            partial.incrementAndGet();
+            return ChannelTable.build(channels, null, null, "Partial result, missing backends: "
+                    + ((FederatedChannelSource.Result) channels).getFailures(), dsQuery, metrics);
         }
+        return ChannelTable.build(channels, dsQuery, metrics);
+    }
 
-        valueNestedBuilder.endNested();
-        
-        PVStructure pvTop = pvDataCreate.createPVStructure(topBuilder.createStructure());
-        PVStructure pvValue = pvTop.getStructureField("value");
-        int ix = 0;
-        for (PVField pvField : pvValue.getPVFields())
-        {
-        	if (pvField instanceof PVStringArray)
-        	{
-        		String[] val = (String[])valueFieldsData.get(ix);
-        		((PVStringArray)pvField).put(0, val.length, val, 0);
-        	}
-        	else if (pvField instanceof PVBooleanArray)
-        	{
-        		boolean[] val = (boolean[])valueFieldsData.get(ix);
-        		((PVBooleanArray)pvField).put(0, val.length, val, 0);
-        	}
-        	else
-        		throw new RuntimeException("unsupported column type: " + pvField.getField());
-        	ix++;
+    private PVStructure getChangesTable(DSQuery dsQuery) {
+        if (!(source instanceof ChannelDirectory)) {
+            throw new IllegalArgumentException(
+                    "The since argument requires a replicated directory (ds.replicate=true)");
         }
-        
-        PVStringArray labelsArray = (PVStringArray) pvTop.getScalarArrayField("labels", ScalarType.pvString);
-        labelsArray.put(0, noCols, labels.toArray(new String[0]), 0);
-        
-        _dbg("Returned data:\n" + pvTop);
-        return pvTop;
+        long start = System.nanoTime();
+        ChannelDirectory.Changes changes = ((ChannelDirectory) source).getChanges(
+                dsQuery.getSince(), dsQuery.getQuery());
+        metrics.fetch.record(DSMetrics.micros(start));
+        return ChannelTable.build(changes.channels, changes.removed, changes.token, dsQuery, metrics);
     }
 
     private static void _dbg(String debug_message) {
@@ -0,0 +1,480 @@
+/**
+ * ChannelDirectory is a local replica of the ChannelFinder directory.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChannelDirectory holds a complete copy of the channels, properties and tags
+ * of a remote source (usually the ChannelFinder web service) in memory,
+ * and answers queries from that copy.
+ *
+ * The copy is loaded in the background when the directory is started,
+ * and refreshed periodically. Queries are answered using a ChannelIndex that
+ * is built for every new copy. Until the first load has succeeded, queries are
+ * passed on to the remote source, or to a separate source for single queries
+ * (which usually has a much shorter timeout than the load of the complete
+ * directory). If a refresh fails, the previous copy is kept,
+ * so that the directory continues answering queries while the remote source
+ * is unavailable.
+ *
+ * Every refresh is compared with the previous copy. If channels were added,
+ * removed or changed (owner, properties or tags), the copy gets a new generation
+ * number and the names of the changed channels are recorded in a change log
+ * of limited size. A client that has the result of a query for one generation
+ * can then ask for the changes of that result (see getChanges).
+ *
+ * If a snapshot file is configured, the copy is written to that file
+ * (see DirectorySnapshot) after every refresh that changed it, and loaded
+ * from it when the directory is started, so that queries can be answered
+ * right away, even if the remote source is not available. Snapshots that are
+ * older than a maximum age, corrupt or of an unknown format are ignored.
+ */
+class ChannelDirectory implements ChannelSource {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final String ALL_CHANNELS = "*";
+
+    /**
+     * Copy is one generation of the local copy.
+     */
+    private static final class Copy {
+        final ChannelIndex index;
+        final Map<String, Channel> byName;
+        final long generation;
+
+        Copy(ChannelIndex index, Map<String, Channel> byName, long generation) {
+            this.index = index;
+            this.byName = byName;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Change records that a channel was added, removed or changed.
+     */
+    private static final class Change {
+        final long generation;
+        final String name;
+        final Channel previous;     // null if the channel was added
+
+        Change(long generation, String name, Channel previous) {
+            this.generation = generation;
+            this.name = name;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Changes is the answer to a change query.
+     */
+    static final class Changes {
+        /** Token identifying the generation the changes lead to */
+        final String token;
+        /** Channels matching the query that are new or changed, or all matching channels */
+        final Collection<Channel> channels;
+        /** Names of channels no longer matching the query, or null if channels is the complete result */
+        final List<String> removed;
+
+        Changes(String token, Collection<Channel> channels, List<String> removed) {
+            this.token = token;
+            this.channels = channels;
+            this.removed = removed;
+        }
+    }
+
+    private final ChannelSource remote;
+    private final ChannelSource passthrough;
+    private final long refreshPeriod;
+    private final int maxChanges;
+    private final File snapshotFile;
+    private final long snapshotMaxAge;
+    private long snapshotCreated = 0;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private ScheduledExecutorService refresher = null;
+
+    private volatile Copy copy = null;
+    private volatile long lastUpdate = 0;
+
+    private final ArrayDeque<Change> changeLog = new ArrayDeque<Change>();
+    private long horizon = 1;   // oldest generation whose changes are all in the log
+
+    /**
+     * Creates a local directory.
+     *
+     * @param remote the source to replicate
+     * @param refreshPeriod time between refreshes in milliseconds
+     */
+    ChannelDirectory(ChannelSource remote, long refreshPeriod) {
+        this(remote, refreshPeriod, 100000);
+    }
+
+    /**
+     * Creates a local directory.
+     *
+     * @param remote the source to replicate
+     * @param refreshPeriod time between refreshes in milliseconds
+     * @param maxChanges maximum number of channel changes kept in the change log
+     */
+    ChannelDirectory(ChannelSource remote, long refreshPeriod, int maxChanges) {
+        this(remote, refreshPeriod, maxChanges, null, 0);
+    }
+
+    /**
+     * Creates a local directory that is saved to a snapshot file.
+     *
+     * @param remote the source to replicate
+     * @param refreshPeriod time between refreshes in milliseconds
+     * @param maxChanges maximum number of channel changes kept in the change log
+     * @param snapshotFile the snapshot file, or null for none
+     * @param snapshotMaxAge age (in milliseconds) after which a snapshot is not loaded, 0 for no limit
+     */
+    ChannelDirectory(ChannelSource remote, long refreshPeriod, int maxChanges,
+            File snapshotFile, long snapshotMaxAge) {
+        this(remote, remote, refreshPeriod, maxChanges, snapshotFile, snapshotMaxAge);
+    }
+
+    /**
+     * Creates a local directory that is saved to a snapshot file, and passes
+     * queries to a separate source until it has been loaded.
+     *
+     * @param remote the source to replicate
+     * @param passthrough the source answering queries until the first load has completed
+     * @param refreshPeriod time between refreshes in milliseconds
+     * @param maxChanges maximum number of channel changes kept in the change log
+     * @param snapshotFile the snapshot file, or null for none
+     * @param snapshotMaxAge age (in milliseconds) after which a snapshot is not loaded, 0 for no limit
+     */
+    ChannelDirectory(ChannelSource remote, ChannelSource passthrough, long refreshPeriod, int maxChanges,
+            File snapshotFile, long snapshotMaxAge) {
+        this.remote = remote;
+        this.passthrough = passthrough;
+        this.refreshPeriod = refreshPeriod;
+        this.maxChanges = maxChanges;
+        this.snapshotFile = snapshotFile;
+        this.snapshotMaxAge = snapshotMaxAge;
+    }
+
+    /**
+     * Starts loading and periodically refreshing the local copy.
+     */
+    synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        if (snapshotFile != null && copy == null) {
+            loadSnapshot();
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("ds-directory-refresh"));
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    System.err.println("Refreshing the channel directory failed: " + e.getMessage());
+                }
+            }
+        }, 0, refreshPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops refreshing the local copy.
+     */
+    synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Replaces the local copy with the current content of the remote source.
+     */
+    void refresh() {
+        long start = System.currentTimeMillis();
+        Collection<Channel> all = remote.find(ALL_CHANNELS);
+        if (all instanceof FederatedChannelSource.Result && ((FederatedChannelSource.Result) all).isPartial()) {
+            /* Channels of the missing backends would look removed */
+            throw new IllegalStateException("Incomplete directory, missing backends: "
+                    + ((FederatedChannelSource.Result) all).getFailures());
+        }
+        List<Channel> l;
+        if (all != null) {
+            l = Collections.unmodifiableList(new ArrayList<Channel>(all));
+        } else {
+            l = Collections.emptyList();
+        }
+        Map<String, Channel> byName = new HashMap<String, Channel>(l.size() * 4 / 3 + 1);
+        for (Channel c : l) {
+            byName.put(c.getName(), c);
+        }
+
+        Copy previous = copy;
+        long generation = 1;
+        if (previous != null) {
+            List<Change> changed = diff(previous.byName, byName, previous.generation + 1);
+            if (changed.isEmpty()) {
+                lastUpdate = System.currentTimeMillis();
+                _dbg("No changes in " + l.size() + " channels");
+                /* Keep an unchanged snapshot from getting too old to be loaded */
+                if (snapshotMaxAge > 0 && lastUpdate - snapshotCreated > snapshotMaxAge / 2) {
+                    saveSnapshot(l);
+                }
+                return;
+            }
+            generation = previous.generation + 1;
+            /* Log the changes before publishing the new copy, so that readers of a copy find its changes */
+            synchronized (changeLog) {
+                changeLog.addAll(changed);
+                while (changeLog.size() > maxChanges) {
+                    horizon = changeLog.removeFirst().generation;
+                }
+            }
+            _dbg("Generation " + generation + ": " + changed.size() + " channels changed");
+        }
+        copy = new Copy(new ChannelIndex(l), byName, generation);
+        lastUpdate = System.currentTimeMillis();
+        _dbg("Loaded and indexed " + l.size() + " channels in " + (lastUpdate - start) + " ms");
+        saveSnapshot(l);
+    }
+
+    /**
+     * Loads the local copy from the snapshot file, unless the snapshot is
+     * missing, too old or unreadable.
+     *
+     * @return true if the snapshot was loaded
+     */
+    boolean loadSnapshot() {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        DirectorySnapshot snapshot;
+        try {
+            snapshot = DirectorySnapshot.read(snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Ignoring snapshot of the channel directory: " + e.getMessage());
+            return false;
+        }
+        long age = start - snapshot.getCreated();
+        if (snapshotMaxAge > 0 && age > snapshotMaxAge) {
+            System.err.println("Ignoring snapshot of the channel directory " + snapshotFile
+                    + ": " + (age / 1000) + " s old");
+            return false;
+        }
+        List<Channel> l = snapshot.getChannels();
+        Map<String, Channel> byName = new HashMap<String, Channel>(l.size() * 4 / 3 + 1);
+        for (Channel c : l) {
+            byName.put(c.getName(), c);
+        }
+        copy = new Copy(new ChannelIndex(l), byName, 1);
+        lastUpdate = snapshot.getCreated();
+        snapshotCreated = snapshot.getCreated();
+        _dbg("Loaded " + l.size() + " channels from snapshot in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    private void saveSnapshot(List<Channel> l) {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            DirectorySnapshot.write(snapshotFile, l);
+            snapshotCreated = System.currentTimeMillis();
+        } catch (IOException e) {
+            System.err.println("Writing the snapshot of the channel directory failed: " + e.getMessage());
+        }
+    }
+
+    private static List<Change> diff(Map<String, Channel> before, Map<String, Channel> after, long generation) {
+        List<Change> changes = new ArrayList<Change>();
+        for (Channel c : after.values()) {
+            Channel old = before.get(c.getName());
+            if (old == null || !same(old, c)) {
+                changes.add(new Change(generation, c.getName(), old));
+            }
+        }
+        for (Channel old : before.values()) {
+            if (!after.containsKey(old.getName())) {
+                changes.add(new Change(generation, old.getName(), old));
+            }
+        }
+        return changes;
+    }
+
+    /* Compares owner, property values and tags of two versions of a channel */
+    private static boolean same(Channel a, Channel b) {
+        if (a.getOwner() == null ? b.getOwner() != null : !a.getOwner().equals(b.getOwner())) {
+            return false;
+        }
+        Collection<Property> pa = a.getProperties();
+        Collection<Property> pb = b.getProperties();
+        if (pa.size() != pb.size()) {
+            return false;
+        }
+        Map<String, String> values = new HashMap<String, String>();
+        for (Property p : pa) {
+            values.put(p.getName(), p.getValue());
+        }
+        for (Property p : pb) {
+            if (!values.containsKey(p.getName())) {
+                return false;
+            }
+            String v = values.get(p.getName());
+            if (v == null ? p.getValue() != null : !v.equals(p.getValue())) {
+                return false;
+            }
+        }
+        Collection<Tag> ta = a.getTags();
+        Collection<Tag> tb = b.getTags();
+        if (ta.size() != tb.size()) {
+            return false;
+        }
+        Set<String> names = new HashSet<String>();
+        for (Tag t : ta) {
+            names.add(t.getName());
+        }
+        for (Tag t : tb) {
+            if (!names.contains(t.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the changes of a query result since the generation identified by a token.
+     *
+     * If the token is empty, unknown (e.g. from before a restart of the service),
+     * or so old that the change log no longer covers it, the complete result
+     * is returned instead.
+     *
+     * @param token token returned with an earlier result, or "" for none
+     * @param query the query
+     * @return the changes and the token of the current generation
+     * @throws IllegalStateException if the local copy has not been loaded yet
+     */
+    Changes getChanges(String token, String query) {
+        Copy c = copy;
+        if (c == null) {
+            throw new IllegalStateException("Channel directory not loaded yet, please retry later");
+        }
+        ChannelQuery q = ChannelQuery.parse(query);
+        String current = epoch + "-" + c.generation;
+
+        long since = parseToken(token);
+        if (since == c.generation) {
+            return new Changes(current, Collections.<Channel>emptyList(), Collections.<String>emptyList());
+        }
+
+        /* The state of each changed channel at the generation of the token */
+        Map<String, Channel> before = new LinkedHashMap<String, Channel>();
+        synchronized (changeLog) {
+            if (since < horizon || since > c.generation) {
+                return new Changes(current, c.index.find(q), null);
+            }
+            for (Change change : changeLog) {
+                if (change.generation > since && change.generation <= c.generation
+                        && !before.containsKey(change.name)) {
+                    before.put(change.name, change.previous);
+                }
+            }
+        }
+
+        List<Channel> updated = new ArrayList<Channel>();
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, Channel> e : before.entrySet()) {
+            Channel now = c.byName.get(e.getKey());
+            if (now != null && q.matches(now)) {
+                updated.add(now);
+            } else if (e.getValue() != null && q.matches(e.getValue())) {
+                removed.add(e.getKey());
+            }
+        }
+        _dbg("Changes since " + token + ": " + updated.size() + " updated, " + removed.size() + " removed");
+        return new Changes(current, updated, removed);
+    }
+
+    /* Returns the generation of a token, or -1 if it is not a token of this directory */
+    private long parseToken(String token) {
+        int dash = token.lastIndexOf('-');
+        if (dash < 0 || !token.substring(0, dash).equals(epoch)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(token.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the local copy has been loaded
+     */
+    boolean isLoaded() {
+        return copy != null;
+    }
+
+    /**
+     * @return time of the last successful refresh (in milliseconds since the epoch)
+     */
+    long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * @return number of channels in the local copy
+     */
+    int size() {
+        Copy c = copy;
+        return c == null ? 0 : c.index.size();
+    }
+
+    @Override
+    public Collection<Channel> find(String query) {
+        Copy c = copy;
+        if (c == null) {
+            _dbg("Directory not loaded yet, passing query on");
+            return passthrough.find(query);
+        }
+        return c.index.find(ChannelQuery.parse(query));
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + ChannelDirectory.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * ChannelIndex is an inverted index over a set of channels.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ChannelIndex answers ChannelFinder queries over an immutable set of channels
+ * using inverted indexes, so that a query does not need to look at every channel.
+ *
+ * Channels are identified by their position in the channel list. The index keeps
+ * <ul>
+ * <li>a sorted posting list (int array of channel ids) for every property value
+ *     and for every tag,</li>
+ * <li>the channel ids sorted by name, so that name patterns with a literal prefix
+ *     resolve to a range found by binary search,</li>
+ * <li>a posting list for every three character sequence (trigram) of the channel
+ *     names, used for name patterns that start with a wildcard.</li>
+ * </ul>
+ * The criteria of a query are resolved to posting lists, which are then intersected
+ * (ANDed criteria) or merged (ORed patterns). Matching is case insensitive,
+ * with the semantics described in ChannelQuery.
+ */
+final class ChannelIndex {
+
+    private static final int[] NONE = new int[0];
+    private static final int GRAM = 3;
+
+    private final List<Channel> channels;
+    private final String[] names;
+    private final int[] byName;
+    private final String[] sortedNames;
+    private final Map<String, Map<String, int[]>> properties;
+    private final Map<String, int[]> tags;
+    private final Map<String, int[]> grams;
+
+    /**
+     * Builds the index for a list of channels.
+     *
+     * @param channels the channels to index (must not be modified afterwards)
+     */
+    ChannelIndex(List<Channel> channels) {
+        this.channels = channels;
+        int n = channels.size();
+        names = new String[n];
+
+        Map<String, Map<String, IntList>> props = new HashMap<String, Map<String, IntList>>();
+        Map<String, IntList> tagLists = new HashMap<String, IntList>();
+        Map<String, IntList> gramLists = new HashMap<String, IntList>();
+
+        for (int id = 0; id < n; id++) {
+            Channel chan = channels.get(id);
+            String name = chan.getName().toLowerCase(Locale.ENGLISH);
+            names[id] = name;
+            for (int i = 0; i + GRAM <= name.length(); i++) {
+                add(gramLists, name.substring(i, i + GRAM), id);
+            }
+            for (Property prop : chan.getProperties()) {
+                if (prop.getValue() == null) {
+                    continue;
+                }
+                String key = prop.getName().toLowerCase(Locale.ENGLISH);
+                Map<String, IntList> values = props.get(key);
+                if (values == null) {
+                    values = new HashMap<String, IntList>();
+                    props.put(key, values);
+                }
+                add(values, prop.getValue().toLowerCase(Locale.ENGLISH), id);
+            }
+            for (Tag tag : chan.getTags()) {
+                add(tagLists, tag.getName().toLowerCase(Locale.ENGLISH), id);
+            }
+        }
+
+        properties = new HashMap<String, Map<String, int[]>>(props.size() * 2);
+        for (Map.Entry<String, Map<String, IntList>> e : props.entrySet()) {
+            properties.put(e.getKey(), freeze(e.getValue()));
+        }
+        tags = freeze(tagLists);
+        grams = freeze(gramLists);
+
+        Integer[] ids = new Integer[n];
+        for (int id = 0; id < n; id++) {
+            ids[id] = id;
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return names[a].compareTo(names[b]);
+            }
+        });
+        byName = new int[n];
+        sortedNames = new String[n];
+        for (int i = 0; i < n; i++) {
+            byName[i] = ids[i];
+            sortedNames[i] = names[ids[i]];
+        }
+    }
+
+    /**
+     * @return number of indexed channels
+     */
+    int size() {
+        return channels.size();
+    }
+
+    /**
+     * Finds the channels matching a query.
+     *
+     * @param query the parsed ChannelFinder query
+     * @return the matching channels, in the order of the indexed channel list
+     */
+    List<Channel> find(ChannelQuery query) {
+        int[] ids = findIds(query);
+        List<Channel> result = new ArrayList<Channel>(ids.length);
+        for (int id : ids) {
+            result.add(channels.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the ids of the channels matching a query.
+     *
+     * @param query the parsed ChannelFinder query
+     * @return sorted ids of the matching channels
+     */
+    int[] findIds(ChannelQuery query) {
+        List<int[]> criteria = new ArrayList<int[]>();
+
+        for (Map.Entry<String, List<String>> e : query.getPropertyPatterns().entrySet()) {
+            Map<String, int[]> values = properties.get(e.getKey());
+            if (values == null) {
+                return NONE;
+            }
+            criteria.add(lookup(values, e.getValue()));
+        }
+        for (String pattern : query.getTagPatterns()) {
+            criteria.add(lookup(tags, Collections.singletonList(pattern)));
+        }
+
+        /* Intersect starting with the shortest lists */
+        Collections.sort(criteria, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a.length < b.length ? -1 : (a.length == b.length ? 0 : 1);
+            }
+        });
+        int[] candidates = null;
+        for (int[] ids : criteria) {
+            candidates = candidates == null ? ids : intersect(candidates, ids);
+            if (candidates.length == 0) {
+                return NONE;
+            }
+        }
+
+        List<String> namePatterns = query.getNamePatterns();
+        if (namePatterns.isEmpty()) {
+            return candidates != null ? candidates : all();
+        }
+        if (candidates != null) {
+            /* Few candidates left: check their names directly */
+            IntList result = new IntList(candidates.length);
+            for (int id : candidates) {
+                for (String pattern : namePatterns) {
+                    if (ChannelQuery.glob(pattern, names[id])) {
+                        result.add(id);
+                        break;
+                    }
+                }
+            }
+            return result.toArray();
+        }
+        int[] result = NONE;
+        for (String pattern : namePatterns) {
+            result = union(result, findNames(pattern));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the ids of the channels whose name matches a pattern.
+     */
+    private int[] findNames(String pattern) {
+        int wildcard = firstWildcard(pattern);
+        IntList result = new IntList();
+        if (wildcard > 0) {
+            /* Literal prefix: binary search for the range of names with that prefix */
+            String prefix = pattern.substring(0, wildcard);
+            int lo = lowerBound(prefix);
+            for (int i = lo; i < sortedNames.length && sortedNames[i].startsWith(prefix); i++) {
+                if (ChannelQuery.glob(pattern, sortedNames[i])) {
+                    result.add(byName[i]);
+                }
+            }
+            int[] ids = result.toArray();
+            Arrays.sort(ids);
+            return ids;
+        }
+        if (wildcard < 0) {
+            /* No wildcards: exact match */
+            for (int i = lowerBound(pattern); i < sortedNames.length && sortedNames[i].equals(pattern); i++) {
+                result.add(byName[i]);
+            }
+            int[] ids = result.toArray();
+            Arrays.sort(ids);
+            return ids;
+        }
+        String literal = longestLiteral(pattern);
+        if (literal.length() >= GRAM) {
+            /* Leading wildcard: intersect the trigram lists of the longest literal part */
+            int[] candidates = null;
+            for (int i = 0; i + GRAM <= literal.length(); i++) {
+                int[] ids = grams.get(literal.substring(i, i + GRAM));
+                if (ids == null) {
+                    return NONE;
+                }
+                candidates = candidates == null ? ids : intersect(candidates, ids);
+            }
+            for (int id : candidates) {
+                if (ChannelQuery.glob(pattern, names[id])) {
+                    result.add(id);
+                }
+            }
+            return result.toArray();
+        }
+        for (int id = 0; id < names.length; id++) {
+            if (ChannelQuery.glob(pattern, names[id])) {
+                result.add(id);
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * Merges the posting lists of all keys matching one of the patterns.
+     */
+    private static int[] lookup(Map<String, int[]> postings, List<String> patterns) {
+        int[] result = NONE;
+        for (String pattern : patterns) {
+            if (firstWildcard(pattern) < 0) {
+                int[] ids = postings.get(pattern);
+                if (ids != null) {
+                    result = union(result, ids);
+                }
+            } else {
+                for (Map.Entry<String, int[]> e : postings.entrySet()) {
+                    if (ChannelQuery.glob(pattern, e.getKey())) {
+                        result = union(result, e.getValue());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private int[] all() {
+        int[] ids = new int[names.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = sortedNames.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedNames[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String longestLiteral(String pattern) {
+        String longest = "";
+        for (String part : pattern.split("[*?]")) {
+            if (part.length() > longest.length()) {
+                longest = part;
+            }
+        }
+        return longest;
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[n++] = a[i++];
+        }
+        while (j < b.length) {
+            result[n++] = b[j++];
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    private static void add(Map<String, IntList> lists, String key, int id) {
+        IntList l = lists.get(key);
+        if (l == null) {
+            l = new IntList();
+            lists.put(key, l);
+        }
+        l.addUnique(id);
+    }
+
+    private static Map<String, int[]> freeze(Map<String, IntList> lists) {
+        Map<String, int[]> result = new HashMap<String, int[]>(lists.size() * 2);
+        for (Map.Entry<String, IntList> e : lists.entrySet()) {
+            result.put(e.getKey(), e.getValue().toArray());
+        }
+        return result;
+    }
+
+    /**
+     * IntList is a growable array of ints.
+     */
+    static final class IntList {
+        private int[] data;
+        private int size = 0;
+
+        IntList() {
+            this(4);
+        }
+
+        IntList(int capacity) {
+            data = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int i) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = i;
+        }
+
+        /* Ids are added in ascending order, so a duplicate can only be the last element */
+        void addUnique(int i) {
+            if (size == 0 || data[size - 1] != i) {
+                add(i);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int ix) {
+            return data[ix];
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * ChannelQuery evaluates ChannelFinder queries locally.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ChannelQuery is a parsed ChannelFinder query string, that can be matched
+ * against channels without contacting the ChannelFinder web service.
+ *
+ * The query syntax and semantics follow the ChannelFinderAPI client:
+ * <pre>
+ *     channelNamePattern propertyName=valuePattern1,valuePattern2 Tags=tagNamePattern
+ * </pre>
+ * Criteria are separated by white space. Multiple channel name patterns are ORed,
+ * multiple value patterns for one property (separated by , or ||) are ORed,
+ * everything else (different properties, multiple tag patterns) is ANDed.
+ * Patterns may include * and ? wildcards, and match case insensitively
+ * (like the ChannelFinder web service does).
+ *
+ * ChannelIndex evaluates a ChannelQuery over large channel sets;
+ * matches(Channel) defines the expected result for a single channel.
+ */
+final class ChannelQuery {
+
+    private final List<String> namePatterns;
+    private final Map<String, List<String>> propertyPatterns;
+    private final List<String> tagPatterns;
+
+    private ChannelQuery(List<String> namePatterns,
+            Map<String, List<String>> propertyPatterns, List<String> tagPatterns) {
+        this.namePatterns = namePatterns;
+        this.propertyPatterns = propertyPatterns;
+        this.tagPatterns = tagPatterns;
+    }
+
+    /**
+     * Parses a ChannelFinder query string.
+     *
+     * @param query ChannelFinder query string
+     * @return the parsed query
+     * @throws IllegalArgumentException if the query string is malformed
+     */
+    static ChannelQuery parse(String query) {
+        List<String> names = new ArrayList<String>();
+        Map<String, List<String>> properties = new LinkedHashMap<String, List<String>>();
+        List<String> tags = new ArrayList<String>();
+
+        for (String word : query.replaceAll(", ", ",").trim().split("\\s+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (!word.contains("=")) {
+                names.add(word.toLowerCase(Locale.ENGLISH));
+                continue;
+            }
+            String[] keyValue = word.split("=");
+            if (keyValue.length < 2 || keyValue[0].length() == 0) {
+                throw new IllegalArgumentException("Invalid query criteria '" + word + "'");
+            }
+            String key = keyValue[0].toLowerCase(Locale.ENGLISH);
+            List<String> values = Arrays.asList(
+                    keyValue[1].toLowerCase(Locale.ENGLISH).replace("||", ",").split(","));
+            if (key.equals("tags")) {
+                tags.addAll(values);
+            } else {
+                List<String> l = properties.get(key);
+                if (l == null) {
+                    l = new ArrayList<String>();
+                    properties.put(key, l);
+                }
+                l.addAll(values);
+            }
+        }
+        return new ChannelQuery(Collections.unmodifiableList(names),
+                Collections.unmodifiableMap(properties), Collections.unmodifiableList(tags));
+    }
+
+    /**
+     * @return the (lower case) channel name patterns, which are ORed
+     */
+    List<String> getNamePatterns() {
+        return namePatterns;
+    }
+
+    /**
+     * @return the (lower case) property names, mapped to their (lower case)
+     *         value patterns, which are ORed
+     */
+    Map<String, List<String>> getPropertyPatterns() {
+        return propertyPatterns;
+    }
+
+    /**
+     * @return the (lower case) tag name patterns, which are ANDed
+     */
+    List<String> getTagPatterns() {
+        return tagPatterns;
+    }
+
+    /**
+     * Checks if a channel matches the query.
+     *
+     * @param channel the channel to check
+     * @return true if the channel matches all criteria of the query
+     */
+    boolean matches(Channel channel) {
+        if (!namePatterns.isEmpty() && !matchesAny(namePatterns, channel.getName())) {
+            return false;
+        }
+        for (Map.Entry<String, List<String>> e : propertyPatterns.entrySet()) {
+            String value = null;
+            for (Property prop : channel.getProperties()) {
+                if (prop.getName().equalsIgnoreCase(e.getKey())) {
+                    value = prop.getValue();
+                    break;
+                }
+            }
+            if (value == null || !matchesAny(e.getValue(), value)) {
+                return false;
+            }
+        }
+        for (String pattern : tagPatterns) {
+            boolean found = false;
+            for (Tag tag : channel.getTags()) {
+                if (glob(pattern, tag.getName())) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesAny(List<String> patterns, String s) {
+        for (String pattern : patterns) {
+            if (glob(pattern, s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches a string against a wildcard pattern, ignoring case.
+     *
+     * @param pattern lower case pattern, where * matches any sequence
+     *                and ? matches any single character
+     * @param s the string to match
+     * @return true if the string matches the pattern
+     */
+    static boolean glob(String pattern, String s) {
+        int plen = pattern.length();
+        int slen = s.length();
+        int p = 0;
+        int i = 0;
+        int star = -1;
+        int mark = 0;
+
+        while (i < slen) {
+            if (p < plen && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = i;
+            } else if (p < plen && (pattern.charAt(p) == '?'
+                    || pattern.charAt(p) == Character.toLowerCase(s.charAt(i)))) {
+                p++;
+                i++;
+            } else if (star >= 0) {
+                p = star + 1;
+                i = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < plen && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == plen;
+    }
+}
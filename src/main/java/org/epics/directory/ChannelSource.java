@@ -0,0 +1,34 @@
+/**
+ * ChannelSource is the interface to the places CFConnector gets channels from.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+
+import java.util.Collection;
+
+/**
+ * ChannelSource answers ChannelFinder queries with a collection of channels.
+ */
+interface ChannelSource {
+
+    /**
+     * Finds the channels matching a ChannelFinder query.
+     *
+     * @param query ChannelFinder query string,
+     *              e.g. "SR* Cell=1,2 Tags=GoldenOrbit,myTag"
+     * @return the matching channels (may be null if there are none)
+     */
+    Collection<Channel> find(String query);
+}
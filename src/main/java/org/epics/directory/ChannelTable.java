@@ -0,0 +1,847 @@
+/**
+ * ChannelTable turns a list of channels into an NTTable.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.PVBooleanArray;
+import org.epics.pvdata.pv.PVDataCreate;
+import org.epics.pvdata.pv.PVDoubleArray;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVIntArray;
+import org.epics.pvdata.pv.PVLongArray;
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStringArray;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.PVUByteArray;
+import org.epics.pvdata.pv.PVUShortArray;
+import org.epics.pvdata.pv.ScalarArray;
+import org.epics.pvdata.pv.ScalarType;
+import org.epics.pvdata.pv.Structure;
+
+/**
+ * ChannelTable builds the NTTable result of a request from the channels
+ * returned by a query.
+ *
+ * The table has one row per channel. The first column contains the channel name,
+ * followed by the owner (if requested), one string column per property and one
+ * boolean column per tag. If the request has a show argument, only the listed
+ * properties and tags are included, in the order given; otherwise all properties
+ * and tags found in the channels are included, ordered by name.
+ * If the request has a filter argument, only the channels matching it are included.
+ *
+ * Building is done in linear passes over the channels: the values of the sort
+ * properties are extracted once into key arrays before sorting, and every
+ * property or tag of a channel is mapped to its column by a single hash lookup.
+ * With a show argument, the show list is used as a projection: the show names are
+ * mapped to their column indices once per table, each channel's properties and tags
+ * are walked once with a hash lookup each, and values that are not shown are skipped.
+ * No column data is created for the other properties and tags (or for the owner,
+ * unless requested).
+ *
+ * If the request asks for a page of the result (offset/limit), the rows are
+ * sorted with the channel name as last sort key, so that the order is the same
+ * for every page, and column data is only created for the rows of the page.
+ * All pages of a result have the same columns: those of the complete result.
+ *
+ * A table of changes (see ChannelDirectory.getChanges) always has the channel
+ * and "@change" columns, even if there are no changes.
+ *
+ * Equal values in the owner and property columns share one String instance.
+ * With dictionary encoding (encoding=dict), these columns contain indices
+ * (ubyte, ushort or int, depending on the number of distinct values) into
+ * a string array of the same field name in an additional "dictionary" structure.
+ * Index 0 is always the empty string, which is used for missing values.
+ *
+ * With a types argument, property columns can be sent as double or long columns
+ * instead of strings (see StringColumn), and sorting by such a property compares
+ * numbers (see DSQuery.SortKey), using keys converted once before sorting.
+ *
+ * The introspection structure of the table only depends on its column types
+ * (the value fields are named c0, c1, ...; the labels are data), so it is taken
+ * from the shared structures in TableStructures, and the new table is filled
+ * field by field in structure order instead of looking fields up by name.
+ *
+ * A partial result (some sources did not answer) has an alarm field with
+ * minor severity, whose message names the missing sources.
+ */
+final class ChannelTable {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final PVDataCreate pvDataCreate = PVDataFactory.getPVDataCreate();
+    private static final ScalarArray stringColumnField = fieldCreate.createScalarArray(ScalarType.pvString);
+    private static final ScalarArray booleanColumnField = fieldCreate.createScalarArray(ScalarType.pvBoolean);
+    private static final ScalarArray ubyteColumnField = fieldCreate.createScalarArray(ScalarType.pvUByte);
+    private static final ScalarArray ushortColumnField = fieldCreate.createScalarArray(ScalarType.pvUShort);
+    private static final ScalarArray intColumnField = fieldCreate.createScalarArray(ScalarType.pvInt);
+    private static final ScalarArray longColumnField = fieldCreate.createScalarArray(ScalarType.pvLong);
+    private static final ScalarArray doubleColumnField = fieldCreate.createScalarArray(ScalarType.pvDouble);
+    static final int ALARM_MINOR = 1;           // alarm_t severity
+    static final int ALARM_STATUS_DEVICE = 1;   // alarm_t status
+    static final String CHANGE_UPDATE = "update";
+    static final String CHANGE_REMOVE = "remove";
+
+    private ChannelTable() {
+    }
+
+    /**
+     * Builds the NTTable for the result of a query.
+     *
+     * @param result the channels returned by the query (may be null)
+     * @param dsQuery the request arguments
+     * @return NTTable structure with the results
+     */
+    static PVStructure build(Collection<Channel> result, DSQuery dsQuery) {
+        return build(result, dsQuery, null);
+    }
+
+    /**
+     * Builds the NTTable for the result of a query, recording the time spent
+     * for sorting and building and the number of rows.
+     *
+     * @param result the channels returned by the query (may be null)
+     * @param dsQuery the request arguments
+     * @param metrics the statistics to record into (may be null)
+     * @return NTTable structure with the results
+     */
+    static PVStructure build(Collection<Channel> result, DSQuery dsQuery, DSMetrics metrics) {
+        return build(result, null, null, dsQuery, metrics);
+    }
+
+    /**
+     * Builds the NTTable for the changes of a query result.
+     *
+     * If removed is not null, the table has a column labelled "@change" after
+     * the channel and owner columns, which is "update" for the rows of the
+     * channels in result (which are new or have changed) and "remove" for
+     * the rows of the removed channels. The removed channels follow the others,
+     * with only the channel name set.
+     *
+     * @param result the (new or changed) channels (may be null)
+     * @param removed names of removed channels, or null
+     * @param descriptor value of the descriptor field, or null for no descriptor field
+     * @param dsQuery the request arguments
+     * @param metrics the statistics to record into (may be null)
+     * @return NTTable structure with the results
+     */
+    static PVStructure build(Collection<Channel> result, List<String> removed, String descriptor,
+            DSQuery dsQuery, DSMetrics metrics) {
+        return build(result, removed, descriptor, null, dsQuery, metrics);
+    }
+
+    /**
+     * Builds the NTTable for a partial result of a query.
+     *
+     * @param result the channels returned by the query (may be null)
+     * @param removed names of removed channels, or null
+     * @param descriptor value of the descriptor field, or null for no descriptor field
+     * @param alarm message of the alarm field saying what is missing, or null for no alarm field
+     * @param dsQuery the request arguments
+     * @param metrics the statistics to record into (may be null)
+     * @return NTTable structure with the results
+     */
+    static PVStructure build(Collection<Channel> result, List<String> removed, String descriptor,
+            String alarm, DSQuery dsQuery, DSMetrics metrics) {
+        long start = System.nanoTime();
+        Channel[] channels;
+        if (result != null) {
+            channels = result.toArray(new Channel[result.size()]);
+        } else {
+            channels = new Channel[0];
+        }
+        if (dsQuery.getFilter() != null) {
+            channels = dsQuery.getFilter().select(channels);
+        }
+        int nChan = channels.length;
+        List<String> show = dsQuery.getShow();
+        boolean showOwner = dsQuery.isOwner();
+        boolean dictionary = dsQuery.isDictionary();
+
+        /* With a limit, only the rows up to the end of the page need to be ordered */
+        int count = nChan;
+        if (dsQuery.getLimit() > 0) {
+            count = (int) Math.min(nChan, (long) dsQuery.getOffset() + dsQuery.getLimit());
+        }
+        int[] order = sortOrder(channels, dsQuery.getSortKeys(), dsQuery.isPaged(), count);
+        int first = Math.min(dsQuery.getOffset(), nChan);
+        int nRows = nChan - first;
+        if (dsQuery.getLimit() > 0 && dsQuery.getLimit() < nRows) {
+            nRows = dsQuery.getLimit();
+        }
+        int nTotal = removed != null ? nRows + removed.size() : nRows;
+        if (metrics != null) {
+            metrics.sort.record(DSMetrics.micros(start));
+            start = System.nanoTime();
+        }
+
+        /* Column indices: with a show filter, only the listed names get a column */
+        Columns<StringColumn> props = new Columns<StringColumn>();
+        Columns<boolean[]> tags = new Columns<boolean[]>();
+        if (show != null) {
+            for (String s : show) {
+                props.index(s);
+                tags.index(s);
+            }
+        }
+
+        /* For a page, create the columns of all channels, not only those on the page */
+        if (dsQuery.isPaged() && nTotal > 0) {
+            for (Channel chan : channels) {
+                if (show != null) {
+                    for (Property prop : chan.getProperties()) {
+                        Integer ix = props.index.get(prop.getName());
+                        if (ix != null) {
+                            propertyColumn(props, ix, nTotal, dsQuery);
+                        }
+                    }
+                    for (Tag tag : chan.getTags()) {
+                        Integer ix = tags.index.get(tag.getName());
+                        if (ix != null) {
+                            tagColumn(tags, ix, nTotal);
+                        }
+                    }
+                } else {
+                    for (Property prop : chan.getProperties()) {
+                        propertyColumn(props, props.index(prop.getName()), nTotal, dsQuery);
+                    }
+                    for (Tag tag : chan.getTags()) {
+                        tagColumn(tags, tags.index(tag.getName()), nTotal);
+                    }
+                }
+            }
+        }
+
+        /* Loop through the channels, setting the appropriate fields in the column data */
+        String[] chanColumn = new String[nTotal];
+        StringColumn ownerColumn = showOwner ? new StringColumn(nTotal, dictionary, null) : null;
+        for (int row = 0; row < nRows; row++) {
+            Channel chan = channels[order[first + row]];
+            chanColumn[row] = chan.getName();
+            if (showOwner) {
+                ownerColumn.set(row, chan.getOwner());
+            }
+            if (show != null) {
+                /* Projection: values of properties and tags that are not shown are skipped */
+                for (Property prop : chan.getProperties()) {
+                    Integer ix = props.index.get(prop.getName());
+                    if (ix != null) {
+                        propertyColumn(props, ix, nTotal, dsQuery).set(row, prop.getValue());
+                    }
+                }
+                for (Tag tag : chan.getTags()) {
+                    Integer ix = tags.index.get(tag.getName());
+                    if (ix != null) {
+                        tagColumn(tags, ix, nTotal)[row] = true;
+                    }
+                }
+            } else {
+                for (Property prop : chan.getProperties()) {
+                    propertyColumn(props, props.index(prop.getName()), nTotal, dsQuery)
+                            .set(row, prop.getValue());
+                }
+                for (Tag tag : chan.getTags()) {
+                    tagColumn(tags, tags.index(tag.getName()), nTotal)[row] = true;
+                }
+            }
+        }
+        String[] changeColumn = null;
+        if (removed != null) {
+            changeColumn = new String[nTotal];
+            Arrays.fill(changeColumn, 0, nRows, CHANGE_UPDATE);
+            Arrays.fill(changeColumn, nRows, nTotal, CHANGE_REMOVE);
+            for (int i = nRows; i < nTotal; i++) {
+                chanColumn[i] = removed.get(i - nRows);
+            }
+        }
+        _dbg("Query returned " + nChan + " channels, " + nRows + " rows from " + first + " with "
+                + props.names.size() + " properties and " + tags.names.size() + " tags");
+
+        /* Collect the columns of the return data NTTable */
+        List<String> labels = new ArrayList<String>();
+        List<ScalarArray> valueFieldTypes = new ArrayList<ScalarArray>();
+        List<Object> valueFieldsData = new ArrayList<Object>();
+        List<String[]> dictionaryData = new ArrayList<String[]>();
+
+        if (nTotal > 0 || changeColumn != null) {
+            /* Add channel column */
+            valueFieldTypes.add(stringColumnField);
+            valueFieldsData.add(chanColumn);
+            labels.add("channel");
+
+            /* Add owner column */
+            if (showOwner) {
+                ownerColumn.add(valueFieldTypes, valueFieldsData, dictionaryData);
+                labels.add("@owner");
+            }
+
+            /* Add change column */
+            if (changeColumn != null) {
+                valueFieldTypes.add(stringColumnField);
+                valueFieldsData.add(changeColumn);
+                labels.add("@change");
+            }
+
+            /* Add properties columns */
+            for (int ix : props.order(show == null)) {
+                if (props.data.get(ix) != null) {
+                    props.data.get(ix).add(valueFieldTypes, valueFieldsData, dictionaryData);
+                    labels.add(props.names.get(ix));
+                }
+            }
+
+            /* Add tags columns */
+            for (int ix : tags.order(show == null)) {
+                if (tags.data.get(ix) != null) {
+                    valueFieldTypes.add(booleanColumnField);
+                    valueFieldsData.add(tags.data.get(ix));
+                    labels.add(tags.names.get(ix));
+                }
+            }
+        }
+        _dbg("Reply contains " + labels.size() + " columns");
+
+        /* Create the table from the shared structure of its layout, and fill it in field order */
+        Structure structure = TableStructures.get(valueFieldTypes, descriptor != null, alarm != null, dictionary);
+        PVStructure pvTop = pvDataCreate.createPVStructure(structure);
+        PVField[] pvTopFields = pvTop.getPVFields();
+        ((PVStringArray) pvTopFields[0]).put(0, labels.size(), labels.toArray(new String[labels.size()]), 0);
+        PVField[] pvColumns = ((PVStructure) pvTopFields[1]).getPVFields();
+        for (int ix = 0; ix < pvColumns.length; ix++) {
+            PVField pvField = pvColumns[ix];
+            if (pvField instanceof PVStringArray) {
+                String[] val = (String[]) valueFieldsData.get(ix);
+                ((PVStringArray) pvField).put(0, val.length, val, 0);
+            } else if (pvField instanceof PVBooleanArray) {
+                boolean[] val = (boolean[]) valueFieldsData.get(ix);
+                ((PVBooleanArray) pvField).put(0, val.length, val, 0);
+            } else if (pvField instanceof PVUByteArray) {
+                byte[] val = (byte[]) valueFieldsData.get(ix);
+                ((PVUByteArray) pvField).put(0, val.length, val, 0);
+            } else if (pvField instanceof PVUShortArray) {
+                short[] val = (short[]) valueFieldsData.get(ix);
+                ((PVUShortArray) pvField).put(0, val.length, val, 0);
+            } else if (pvField instanceof PVIntArray) {
+                int[] val = (int[]) valueFieldsData.get(ix);
+                ((PVIntArray) pvField).put(0, val.length, val, 0);
+            } else if (pvField instanceof PVLongArray) {
+                long[] val = (long[]) valueFieldsData.get(ix);
+                ((PVLongArray) pvField).put(0, val.length, val, 0);
+            } else if (pvField instanceof PVDoubleArray) {
+                double[] val = (double[]) valueFieldsData.get(ix);
+                ((PVDoubleArray) pvField).put(0, val.length, val, 0);
+            } else {
+                throw new RuntimeException("unsupported column type: " + pvField.getField());
+            }
+        }
+        int next = 2;
+        if (descriptor != null) {
+            ((PVString) pvTopFields[next++]).put(descriptor);
+        }
+        if (alarm != null) {
+            PVStructure pvAlarm = (PVStructure) pvTopFields[next++];
+            pvAlarm.getIntField("severity").put(ALARM_MINOR);
+            pvAlarm.getIntField("status").put(ALARM_STATUS_DEVICE);
+            pvAlarm.getStringField("message").put(alarm);
+        }
+        if (dictionary) {
+            PVField[] pvWords = ((PVStructure) pvTopFields[next++]).getPVFields();
+            for (int i = 0; i < pvWords.length; i++) {
+                String[] val = dictionaryData.get(i);
+                ((PVStringArray) pvWords[i]).put(0, val.length, val, 0);
+            }
+        }
+
+        if (metrics != null) {
+            metrics.build.record(DSMetrics.micros(start));
+            metrics.rows.record(nTotal);
+        }
+        _dbg("Returned data:\n" + pvTop);
+        return pvTop;
+    }
+
+    /**
+     * @param table an NTTable built by ChannelTable
+     * @return the alarm message of a partial result, or null if the result is complete
+     */
+    static String getPartialMessage(PVStructure table) {
+        PVStructure pvAlarm = table.getStructureField("alarm");
+        if (pvAlarm == null || pvAlarm.getIntField("severity").get() == 0) {
+            return null;
+        }
+        return pvAlarm.getStringField("message").get();
+    }
+
+    /* Returns the data of a property column, creating it on first use */
+    private static StringColumn propertyColumn(Columns<StringColumn> props, int ix, int nRows,
+            DSQuery dsQuery) {
+        StringColumn col = props.data.get(ix);
+        if (col == null) {
+            col = new StringColumn(nRows, dsQuery.isDictionary(), dsQuery.getType(props.names.get(ix)));
+            props.data.set(ix, col);
+        }
+        return col;
+    }
+
+    /* Returns the data of a tag column, creating it on first use */
+    private static boolean[] tagColumn(Columns<boolean[]> tags, int ix, int nRows) {
+        boolean[] col = tags.data.get(ix);
+        if (col == null) {
+            col = new boolean[nRows];
+            tags.data.set(ix, col);
+        }
+        return col;
+    }
+
+    /**
+     * Determines the order of the rows.
+     *
+     * The values of the sort properties are looked up once per channel
+     * (by name, without going through the other properties of the channel),
+     * and converted once for numeric sort keys.
+     * Channels that do not have a sort property (or, for a numeric sort key, whose
+     * value is not a number) come first, or last for a descending sort key;
+     * the sort is stable.
+     *
+     * If fewer rows than channels are needed, the first rows are selected
+     * with a bounded heap in O(n log count), instead of sorting all channels.
+     *
+     * @param channels the channels
+     * @param sort the sort keys, or null
+     * @param byName if true, the channel name is used as last sort key
+     * @param count number of rows needed (from the start of the result)
+     * @return indices of the first count channels in result order
+     */
+    static int[] sortOrder(Channel[] channels, List<DSQuery.SortKey> sort, boolean byName, int count) {
+        int n = channels.length;
+        count = Math.min(count, n);
+        if ((sort == null && !byName) || n < 2) {
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+
+        final int nKeys = sort != null ? sort.size() : 0;
+        String[] keyNames = new String[nKeys];
+        final String[][] keys = new String[nKeys + 1][];
+        final double[][] numbers = new double[nKeys][];
+        final boolean[] descending = new boolean[nKeys + 1];
+        for (int k = 0; k < nKeys; k++) {
+            DSQuery.SortKey key = sort.get(k);
+            keyNames[k] = key.getProperty();
+            descending[k] = key.isDescending();
+            if (key.isNumeric()) {
+                numbers[k] = new double[n];
+            } else {
+                keys[k] = new String[n];
+            }
+        }
+        if (byName) {
+            keys[nKeys] = new String[n];
+        }
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < nKeys; k++) {
+                Property prop = channels[i].getProperty(keyNames[k]);
+                String value = prop != null ? prop.getValue() : null;
+                if (numbers[k] != null) {
+                    numbers[k][i] = toNumber(value);
+                } else {
+                    keys[k][i] = value;
+                }
+            }
+            if (byName) {
+                keys[nKeys][i] = channels[i].getName();
+            }
+        }
+        for (int k = 0; k < nKeys; k++) {
+            if (sort.get(k).isInferred()) {
+                numbers[k] = toNumbers(keys[k]);
+                if (numbers[k] != null) {
+                    keys[k] = null;
+                }
+            }
+        }
+
+        IndexComparator c = new IndexComparator() {
+            @Override
+            public int compare(int a, int b) {
+                for (int k = 0; k <= nKeys; k++) {
+                    int cmp;
+                    if (k < nKeys && numbers[k] != null) {
+                        cmp = compareNumbers(numbers[k][a], numbers[k][b]);
+                    } else if (keys[k] != null) {
+                        cmp = compareStrings(keys[k][a], keys[k][b]);
+                    } else {
+                        continue;
+                    }
+                    if (cmp != 0) {
+                        return descending[k] ? -cmp : cmp;
+                    }
+                }
+                return 0;
+            }
+        };
+        if (count < n) {
+            return top(n, count, c);
+        }
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        sort(order, c);
+        return order;
+    }
+
+    /* Converts a sort key value to a number (NaN if it is not a number) */
+    private static double toNumber(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /* Converts string sort keys to numbers, returns null if a value is not a number */
+    private static double[] toNumbers(String[] values) {
+        double[] numbers = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            numbers[i] = toNumber(values[i]);
+            if (Double.isNaN(numbers[i]) && values[i] != null && values[i].trim().length() > 0) {
+                return null;
+            }
+        }
+        return numbers;
+    }
+
+    /* Compares two numeric sort keys, NaN (no number) first */
+    private static int compareNumbers(double a, double b) {
+        if (Double.isNaN(a)) {
+            return Double.isNaN(b) ? 0 : -1;
+        } else if (Double.isNaN(b)) {
+            return 1;
+        }
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
+    /* Compares two string sort keys, null (no value) first */
+    private static int compareStrings(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        } else if (b == null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Selects the first count of the indices 0..n-1 in the order of a comparator,
+     * keeping the largest of the selected indices at the top of a bounded heap.
+     * Equal indices are ordered by index, as with a stable sort.
+     *
+     * @param n number of indices
+     * @param count number of indices to select (less than n)
+     * @param c the comparator
+     * @return the selected indices, in order
+     */
+    static int[] top(int n, int count, final IndexComparator c) {
+        IndexComparator stable = new IndexComparator() {
+            @Override
+            public int compare(int a, int b) {
+                int cmp = c.compare(a, b);
+                return cmp != 0 ? cmp : (a < b ? -1 : (a > b ? 1 : 0));
+            }
+        };
+        int[] heap = new int[count];
+        if (count == 0) {
+            return heap;
+        }
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (size < count) {
+                /* Sift up */
+                int pos = size++;
+                while (pos > 0 && stable.compare(heap[(pos - 1) / 2], i) < 0) {
+                    heap[pos] = heap[(pos - 1) / 2];
+                    pos = (pos - 1) / 2;
+                }
+                heap[pos] = i;
+            } else if (stable.compare(i, heap[0]) < 0) {
+                /* Replace the top and sift down */
+                int pos = 0;
+                while (true) {
+                    int child = 2 * pos + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && stable.compare(heap[child + 1], heap[child]) > 0) {
+                        child++;
+                    }
+                    if (stable.compare(heap[child], i) <= 0) {
+                        break;
+                    }
+                    heap[pos] = heap[child];
+                    pos = child;
+                }
+                heap[pos] = i;
+            }
+        }
+        sort(heap, stable);
+        return heap;
+    }
+
+    /**
+     * IndexComparator compares two rows given by their index.
+     */
+    interface IndexComparator {
+        int compare(int a, int b);
+    }
+
+    /**
+     * Sorts an array of indices (stable merge sort).
+     *
+     * @param a the indices to sort
+     * @param c the comparator for the indices
+     */
+    static void sort(int[] a, IndexComparator c) {
+        int[] src = a.clone();
+        mergeSort(src, a, 0, a.length, c);
+    }
+
+    private static void mergeSort(int[] src, int[] dest, int lo, int hi, IndexComparator c) {
+        int len = hi - lo;
+        if (len < 7) {
+            for (int i = lo + 1; i < hi; i++) {
+                for (int j = i; j > lo && c.compare(dest[j - 1], dest[j]) > 0; j--) {
+                    int t = dest[j];
+                    dest[j] = dest[j - 1];
+                    dest[j - 1] = t;
+                }
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(dest, src, lo, mid, c);
+        mergeSort(dest, src, mid, hi, c);
+        if (c.compare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, lo, dest, lo, len);
+            return;
+        }
+        for (int i = lo, p = lo, q = mid; i < hi; i++) {
+            if (q >= hi || (p < mid && c.compare(src[p], src[q]) <= 0)) {
+                dest[i] = src[p++];
+            } else {
+                dest[i] = src[q++];
+            }
+        }
+    }
+
+    /**
+     * StringColumn holds the data of an owner or property column.
+     *
+     * Every distinct value is stored once: equal values share one String instance,
+     * and with dictionary encoding (or a column type) the rows hold the index of their value.
+     * A column with a numeric type is added as a double or long column: each distinct
+     * value is converted once, missing and invalid values are NaN. A long column with
+     * missing or non-integer values is added as a double column, as a long cannot be NaN.
+     * A column of type auto is added as a long or double column if all its values are
+     * numbers, otherwise as a string column.
+     */
+    private static final class StringColumn {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final List<String> values = new ArrayList<String>();
+        final boolean dictionary;
+        final String type;
+        final String[] strings;
+        final int[] indices;
+
+        StringColumn(int nRows, boolean dictionary, String type) {
+            index.put("", 0);
+            values.add("");
+            this.dictionary = dictionary;
+            this.type = type;
+            boolean indexed = dictionary || type != null;
+            strings = indexed ? null : new String[nRows];
+            indices = indexed ? new int[nRows] : null;
+        }
+
+        void set(int row, String value) {
+            if (value == null) {
+                return;
+            }
+            Integer ix = index.get(value);
+            if (ix == null) {
+                ix = values.size();
+                index.put(value, ix);
+                values.add(value);
+            }
+            if (indices != null) {
+                indices[row] = ix;
+            } else {
+                strings[row] = values.get(ix);
+            }
+        }
+
+        /* Adds the column type and data to the value columns, using the smallest index type that fits */
+        void add(List<ScalarArray> types, List<Object> data, List<String[]> dictionaryData) {
+            if (type != null && addNumbers(types, data)) {
+                return;
+            }
+            if (indices == null) {
+                types.add(stringColumnField);
+                data.add(strings);
+                return;
+            }
+            int n = indices.length;
+            if (!dictionary) {
+                String[] col = new String[n];
+                for (int i = 0; i < n; i++) {
+                    col[i] = indices[i] != 0 ? values.get(indices[i]) : null;
+                }
+                types.add(stringColumnField);
+                data.add(col);
+                return;
+            }
+            if (values.size() <= 0x100) {
+                byte[] col = new byte[n];
+                for (int i = 0; i < n; i++) {
+                    col[i] = (byte) indices[i];
+                }
+                types.add(ubyteColumnField);
+                data.add(col);
+            } else if (values.size() <= 0x10000) {
+                short[] col = new short[n];
+                for (int i = 0; i < n; i++) {
+                    col[i] = (short) indices[i];
+                }
+                types.add(ushortColumnField);
+                data.add(col);
+            } else {
+                types.add(intColumnField);
+                data.add(indices);
+            }
+            dictionaryData.add(values.toArray(new String[values.size()]));
+        }
+
+        /* Adds the column as a numeric column; returns false if it is to stay a string column */
+        private boolean addNumbers(List<ScalarArray> types, List<Object> data) {
+            int nValues = values.size();
+            double[] numbers = new double[nValues];
+            long[] longs = new long[nValues];
+            boolean numeric = true;
+            boolean integral = true;
+            numbers[0] = Double.NaN;
+            for (int j = 1; j < nValues; j++) {
+                String value = values.get(j).trim();
+                numbers[j] = toNumber(value);
+                if (Double.isNaN(numbers[j]) && !value.equals("NaN")) {
+                    numeric = false;
+                }
+                try {
+                    longs[j] = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    integral = false;
+                }
+            }
+            if (type.equals(DSQuery.TYPE_AUTO) && !numeric) {
+                return false;
+            }
+            int n = indices.length;
+            boolean missing = false;
+            for (int i = 0; i < n && !missing; i++) {
+                missing = indices[i] == 0;
+            }
+            if (!type.equals(DSQuery.TYPE_DOUBLE) && integral && !missing) {
+                long[] col = new long[n];
+                for (int i = 0; i < n; i++) {
+                    col[i] = longs[indices[i]];
+                }
+                types.add(longColumnField);
+                data.add(col);
+            } else {
+                double[] col = new double[n];
+                for (int i = 0; i < n; i++) {
+                    col[i] = numbers[indices[i]];
+                }
+                types.add(doubleColumnField);
+                data.add(col);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Columns maps property or tag names to column indices,
+     * and holds the column data arrays (allocated on first use).
+     */
+    private static final class Columns<T> {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final List<String> names = new ArrayList<String>();
+        final List<T> data = new ArrayList<T>();
+
+        /* Returns the index of a column, adding the column if necessary */
+        int index(String name) {
+            Integer ix = index.get(name);
+            if (ix == null) {
+                ix = names.size();
+                index.put(name, ix);
+                names.add(name);
+                data.add(null);
+            }
+            return ix;
+        }
+
+        /* Returns the column indices in order of creation or sorted by name */
+        List<Integer> order(boolean byName) {
+            List<Integer> order = new ArrayList<Integer>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                order.add(i);
+            }
+            if (byName) {
+                Collections.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return names.get(a).compareTo(names.get(b));
+                    }
+                });
+            }
+            return order;
+        }
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + ChannelTable.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
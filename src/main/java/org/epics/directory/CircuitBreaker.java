@@ -0,0 +1,130 @@
+/**
+ * CircuitBreaker stops calling a backend that keeps failing.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+/**
+ * CircuitBreaker protects the service from a failing backend.
+ *
+ * After a number of consecutive failed calls, the circuit opens: calls are
+ * refused immediately, instead of tying up worker threads until they time out.
+ * When the open time has passed, a single trial call is let through.
+ * If it succeeds, the circuit closes; if it fails, the circuit stays open
+ * for another open time.
+ */
+final class CircuitBreaker {
+
+    private final int threshold;
+    private final long openTime;
+
+    private int failures = 0;
+    private boolean open = false;
+    private boolean trial = false;
+    private long openedAt = 0;
+    private long opened = 0;
+    private long refused = 0;
+
+    /**
+     * @param threshold number of consecutive failures that open the circuit (0 = never)
+     * @param openTime time (in milliseconds) before a trial call is let through
+     */
+    CircuitBreaker(int threshold, long openTime) {
+        this.threshold = threshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Asks for permission to call the backend.
+     * Every permitted call must be followed by success() or failure().
+     *
+     * @return true if the call may go ahead
+     */
+    synchronized boolean allow() {
+        if (!open) {
+            return true;
+        }
+        if (!trial && System.currentTimeMillis() - openedAt >= openTime) {
+            trial = true;
+            return true;
+        }
+        refused++;
+        return false;
+    }
+
+    /**
+     * Records a successful call, closing the circuit.
+     */
+    synchronized void success() {
+        failures = 0;
+        open = false;
+        trial = false;
+    }
+
+    /**
+     * Records a failed call, opening the circuit when the threshold is reached
+     * or the trial call has failed.
+     */
+    synchronized void failure() {
+        failures++;
+        if (trial || (threshold > 0 && failures >= threshold)) {
+            if (!open) {
+                opened++;
+            }
+            open = true;
+            trial = false;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return true if calls are currently refused
+     */
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return number of consecutive failed calls
+     */
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return time (in milliseconds) until the next trial call, 0 if the circuit is closed
+     */
+    synchronized long getRetryDelay() {
+        return open ? Math.max(0, openedAt + openTime - System.currentTimeMillis()) : 0;
+    }
+
+    /**
+     * @return number of times the circuit has opened
+     */
+    synchronized long getOpened() {
+        return opened;
+    }
+
+    /**
+     * @return number of refused calls
+     */
+    synchronized long getRefused() {
+        return refused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker: " + (open ? "open" : "closed") + ", " + failures + " failures, "
+                + opened + " times opened, " + refused + " calls refused";
+    }
+}
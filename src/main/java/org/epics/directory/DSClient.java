@@ -15,23 +15,19 @@ package org.epics.directory;
  * #L%
  */
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.epics.pvaccess.ClientFactory;
-import org.epics.pvaccess.client.rpc.RPCClient;
-import org.epics.pvaccess.client.rpc.RPCClientFactory;
-import org.epics.pvaccess.client.rpc.RPCClientRequester;
-import org.epics.pvdata.factory.FieldFactory;
-import org.epics.pvdata.factory.PVDataFactory;
-import org.epics.pvdata.pv.*;
+import org.epics.pvaccess.server.rpc.RPCRequestException;
 import org.epics.pvdata.util.namedValues.NamedValues;
 import org.epics.pvdata.util.namedValues.NamedValuesFormatter;
-import org.epics.pvdata.util.pvDataHelper.GetHelper;
 
 /**
  * DSClient is a simple command line client of the DSService.
  * 
  * DSService gets data out of the ChannelFinder directory service.
+ * DSClient uses the DirectoryClient library, which Java applications can
+ * use directly.
  *
  * @author Ralph Lange (Ralph.Lange@gmx.de)
  *
@@ -39,13 +35,8 @@ import org.epics.pvdata.util.pvDataHelper.GetHelper;
 
 public class DSClient {
     private static final boolean DEBUG = false; // Print debug info
-    private static final String CLIENT_NAME = "DirectoryService Client";
     private static final String SERVICE_NAME = "ds";
 
-    private static final String LABELS_FIELD = "labels";
-    
-    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
-    
     private static final double timeout = 5.0;
 
     /**
@@ -54,21 +45,32 @@ public class DSClient {
      * @param args args[0] must be a query that the server will understand
      */
     public static void main(String[] args) {
-        PVStructure pvResult = null;
-        List<String> arguments = new ArrayList<String>();
-        List<String> values = new ArrayList<String>();
+        DirectoryTable result = null;
+        Map<String, String> arguments = new LinkedHashMap<String, String>();
         boolean printLabels = true;
+        int pageSize = 0;
+        int watchPeriod = 0;
+        String encoding = "dict";
 
         if (args.length <= 0) {
             System.err.println("No query specified; exiting.");
             System.exit(-1);
         }
 
-        /* Start PVAccess client and connect */
-        ClientFactory.start();
-        Client client = new Client();
+        /* Load test mode: replay a request mix or an access log and report throughput and latencies */
+        if (args[0].startsWith("load=") || args[0].startsWith("replay=")) {
+            ClientFactory.start();
+            int status = DSLoad.run(SERVICE_NAME, args);
+            ClientFactory.stop();
+            System.exit(status);
+        }
 
-        client.connect(SERVICE_NAME);
+        /* Start PVAccess client and connect */
+        DirectoryClient client = new DirectoryClient(SERVICE_NAME, 1, timeout);
+        if (!client.waitConnect(5.0)) {
+            System.err.println("Unable to contact " + SERVICE_NAME + ". Exiting");
+            System.exit(1);
+        }
         _dbg("client connected");
 
         // Parse command line
@@ -78,230 +80,171 @@ public class DSClient {
                 _dbg("token " + i + ": " + s);
             if (s.equals("owner")) {
                 _dbg("-> found owner ");
-                arguments.add("owner");
-                values.add("1");
+                arguments.put("owner", "1");
             } else if (s.startsWith("sort=")) {
                 _dbg("-> found sort " + s.split("=", -1)[1]);
-                arguments.add("sort");
-                values.add(s.split("=", -1)[1]);
+                arguments.put("sort", s.split("=", -1)[1]);
             } else if (s.equals("nolabels")) {
                 printLabels = false;
+            } else if (s.startsWith("pagesize=")) {
+                _dbg("-> found pagesize " + s.split("=", -1)[1]);
+                try {
+                    pageSize = Integer.parseInt(s.split("=", -1)[1]);
+                } catch (NumberFormatException e) {
+                    pageSize = -1;
+                }
+                if (pageSize <= 0) {
+                    System.err.println("Invalid page size '" + s + "'; exiting.");
+                    System.exit(-1);
+                }
+            } else if (s.startsWith("watch=")) {
+                _dbg("-> found watch " + s.split("=", -1)[1]);
+                try {
+                    watchPeriod = Integer.parseInt(s.split("=", -1)[1]);
+                } catch (NumberFormatException e) {
+                    watchPeriod = -1;
+                }
+                if (watchPeriod <= 0) {
+                    System.err.println("Invalid watch period '" + s + "'; exiting.");
+                    System.exit(-1);
+                }
+            } else if (s.startsWith("encoding=")) {
+                _dbg("-> found encoding " + s.split("=", -1)[1]);
+                encoding = s.split("=", -1)[1];
+            } else if (s.startsWith("filter=")) {
+                _dbg("-> found filter " + s.split("=", 2)[1]);
+                arguments.put("filter", s.split("=", 2)[1]);
+            } else if (s.startsWith("limit=")) {
+                _dbg("-> found limit " + s.split("=", -1)[1]);
+                arguments.put("limit", s.split("=", -1)[1]);
             } else if (s.startsWith("show=")) {
                 _dbg("-> found show " + s.split("=", -1)[1]);
-                arguments.add("show");
-                values.add(s.split("=", -1)[1]);
+                arguments.put("show", s.split("=", -1)[1]);
+            } else if (s.startsWith("types=")) {
+                _dbg("-> found types " + s.split("=", -1)[1]);
+                arguments.put("types", s.split("=", -1)[1]);
+            } else if (s.startsWith("client=")) {
+                _dbg("-> found client " + s.split("=", -1)[1]);
+                arguments.put("client", s.split("=", -1)[1]);
             } else if (s.startsWith("query=")) {
                 _dbg("-> found qual. query " + s.split("=", -1)[1]);
-                arguments.add("query");
-                values.add(s.split("=", -1)[1]);
+                arguments.put("query", s.split("=", -1)[1]);
             } else if (i == 0) {
                 _dbg("-> found query " + s);
-                arguments.add("query");
-                values.add(s);
+                arguments.put("query", s);
             } else {
                 System.err.println("Unrecognized argument '" + s + "'; exiting.");
                 System.exit(-1);
             }
         }
 
-        // Set up NTURI request structure (args are string fields inside the query structure)
-        int nArgs = arguments.size();
-
-        String[] a = arguments.toArray(new String[nArgs]);
-        String[] v = values.toArray(new String[values.size()]);
-        _dbg("nArgs " + nArgs + " (" + a + ")");
-        
-        Field[] f = new Field[nArgs];
-        for (int i = 0; i < nArgs; i++) {
-            f[i] = fieldCreate.createScalar(ScalarType.pvString);
-        }
-        
-        Structure queryStructure = fieldCreate.createStructure(a, f);
-
-        Structure uriStructure =
-                fieldCreate.createStructure("epics:nt/NTURI:1.0",
-                new String[]{"path", "query"},
-                new Field[]{fieldCreate.createScalar(ScalarType.pvString),
-                    queryStructure});
+        // Results are requested dictionary encoded (smaller replies) and decoded before printing
+        arguments.put("encoding", encoding);
 
-        // Fill in values for path and query (argument list)
-        PVStructure request = PVDataFactory.getPVDataCreate().
-                createPVStructure(uriStructure);
-        request.getStringField("path").put(SERVICE_NAME);
-        PVStructure query = request.getStructureField("query");
-        for (int i = 0; i < nArgs; i++) {
-            query.getStringField(a[i]).put(v[i]);
+        // In watch mode, the changes since the previous request are fetched and printed periodically
+        if (watchPeriod > 0) {
+            if (pageSize > 0) {
+                System.err.println("pagesize and watch cannot be combined; exiting.");
+                System.exit(-1);
+            }
+            arguments.put("since", "");
         }
-        _dbg("request = " + request);
 
-        try {
-            pvResult = client.request(query);
-        } catch (Exception e) {
-            if (e.getMessage() != null) {
-                System.err.println(e.getMessage());
+        // In paged mode, the table is fetched and printed in chunks of pageSize rows
+        if (pageSize > 0) {
+            if (arguments.containsKey("limit")) {
+                System.err.println("pagesize and limit cannot be combined; exiting.");
+                System.exit(-1);
             }
-            System.exit(-1);
+            arguments.put("offset", "0");
+            arguments.put("limit", Integer.toString(pageSize));
         }
 
-        if (!pvResult.getStructure().getID().startsWith("epics:nt/NTTable:1.")) {
-            System.err.println("Unexpected data structure returned from "
-                    + SERVICE_NAME + ": Expected epics:nt/NTTable:1.x, got "
-                    + pvResult.getStructure().getID());
-            System.exit(-1);
-        }
-        
-        PVStructure pvValueStructure = pvResult.getStructureField("value");
-        if (pvValueStructure == null) {
-            System.err.println("NTTable returned from "+ SERVICE_NAME
-                    + "does not have a value");
-            System.exit(-1);
-        }
-        PVField[] pvValue = pvValueStructure.getPVFields();
+        int offset = 0;
+        while (true) {
+            if (pageSize > 0) {
+                arguments.put("offset", Integer.toString(offset));
+            }
+            try {
+                result = client.request(arguments);
+            } catch (RPCRequestException e) {
+                System.err.println(SERVICE_NAME + " returned status " + e.getStatus()
+                        + " with message: " + e.getMessage());
+                System.exit(-1);
+            }
+            if (result.getMessage() != null) {
+                System.err.println(SERVICE_NAME + " returned warning: " + result.getMessage());
+            }
 
-        /* Fill the returned table into a NamedValues structure for printout */
-        
-        NamedValues namedValues = new NamedValues();
+            if (watchPeriod > 0) {
+                String token = result.getDescriptor();
+                if (token == null) {
+                    System.err.println(SERVICE_NAME + " returned no change token; exiting.");
+                    System.exit(-1);
+                }
+                boolean first = arguments.get("since").length() == 0;
+                if (first || result.getRowCount() > 0) {
+                    printTable(result, printLabels);
+                }
+                arguments.put("since", token);
+                try {
+                    Thread.sleep(watchPeriod * 1000L);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
 
-        int i = 0;
-        for (String columnName : GetHelper.getStringVector((PVStringArray) pvResult.getScalarArrayField(LABELS_FIELD, ScalarType.pvString))) {
-            ScalarArray scalarArray = (ScalarArray) pvValue[i].getField();
-            if (scalarArray.getElementType() == ScalarType.pvDouble) {
-                namedValues.add(columnName, GetHelper.getDoubleVector((PVDoubleArray) pvValue[i]));
-            } else if (scalarArray.getElementType() == ScalarType.pvString) {
-                namedValues.add(columnName, GetHelper.getStringVector((PVStringArray) pvValue[i]));
-            } else if (scalarArray.getElementType() == ScalarType.pvBoolean) {
-                namedValues.add(columnName, GetHelper.getBooleanVector((PVBooleanArray) pvValue[i]));
-            } else {
-                System.err.println("Value array " + i + " called " + pvValue[i].getFieldName()
-                        + " from " + SERVICE_NAME + " has unexpected type.\n"
-                        + "Only pvDouble, pvString, pvBoolean supported");
+            int rows = printTable(result, printLabels && offset == 0);
+            if (pageSize <= 0 || rows < pageSize) {
+                break;
             }
-            i++;
+            offset += rows;
         }
 
-        /* Set up a printout formatter for our NamedValues system */
-        NamedValuesFormatter formatter =
-                NamedValuesFormatter.create(NamedValuesFormatter.STYLE_COLUMNS);
-        formatter.setWhetherDisplayLabels(printLabels);
-        formatter.assignNamedValues(namedValues);
-        formatter.display(System.out);
-
-        _dbg(pvResult.toString());
-
         client.destroy();
-        org.epics.pvaccess.ClientFactory.stop();
+        ClientFactory.stop();
 
         _dbg("result printed, pvAccess stopped, exiting");
         System.exit(0);
     }
 
     /**
-     * Client is an implementation of RPCClientRequester.
-     * 
-     * This is the interface between your functional client side code,
-     * and the callbacks required by the client side of pvData and the RPC support
+     * printTable prints an NTTable returned by the service.
+     *
+     * @param table the returned table
+     * @param printLabels true if the column labels are to be printed
+     * @return number of rows in the table
      */
-    private static class Client implements RPCClientRequester {
-
-        private RPCClient serviceClient = null;
-        private PVStructure pvResult = null;
-
-        /**
-         * Connect and wait until connected.
-         *
-         * @param serviceName name of the service to connect to
-         */
-        void connect(String serviceName) {
-            try {
-                serviceClient = RPCClientFactory.create(serviceName, this);
-                serviceClient.waitConnect(5.0);
-            } catch (Exception ex) {
-                System.err.println(this.getClass().getName() + " received Exception " + ex.getClass()
-                        + " with message \"" + ex.getMessage() + "\"");
-                System.err.println("Unable to contact " + SERVICE_NAME + ". Exiting");
-                System.exit(1);
-            }
-            _dbg("connected to " + SERVICE_NAME);
-        }
-
-        /**
-         * Cleanup client side resources.
-         */
-        void destroy() {
-            serviceClient.destroy();
-        }
-
-        /**
-         * Send a request and wait until done.
-         *
-         * @returns PVStructure data returned by the service
-         */
-        PVStructure request(PVStructure pvArguments) {
-            _dbg("Sending request");
+    private static int printTable(DirectoryTable table, boolean printLabels) {
 
-            // Actually execute the request for data on the server.
-            serviceClient.sendRequest(pvArguments);
-            serviceClient.waitResponse(timeout);
-
-            _dbg("Request exits with pvResult =\n" + pvResult.toString());
-            return pvResult;
-        }
-
-        /**
-         * connectResult verifies the connection.
-         *
-         * @see
-         * org.epics.pvaccess.client.rpc.RPCClientRequester#connectResult(org.epics.pvdata.pv.Status)
-         */
-        @Override
-	public void connectResult(RPCClient client, Status status) {
-            if (!status.isOK()) {
-                throw new RuntimeException("Connection error: " + status.getMessage());
-            }
-            return;
-        }
+        /* Fill the returned table into a NamedValues structure for printout */
+        
+        NamedValues namedValues = new NamedValues();
 
-        /**
-         * requestResult receives data from the server.
-         *
-         * @see
-         * org.epics.pvService.client.RPCClientRequester#requestResult(org.epics.pvdata.pv.Status,
-         * org.epics.pvdata.pv.PVStructure)
-         */
-        @Override
-	public void requestResult(RPCClient client, Status status, PVStructure pvResult) {
-            if (!status.isOK()) {
-                // throw new RuntimeException("Request error: " + status.getMessage());
-                System.err.println(SERVICE_NAME + " returned status " + status.getType().toString()
-                        + " with message: " + status.getMessage());
-                this.pvResult = null;
+        for (int i = 0; i < table.getColumnCount(); i++) {
+            DirectoryTable.Column column = table.getColumn(i);
+            if (column instanceof DirectoryTable.DoubleColumn) {
+                namedValues.add(column.getLabel(), ((DirectoryTable.DoubleColumn) column).toDoubles());
+            } else if (column instanceof DirectoryTable.LongColumn) {
+                namedValues.add(column.getLabel(), ((DirectoryTable.LongColumn) column).toLongs());
+            } else if (column instanceof DirectoryTable.BooleanColumn) {
+                namedValues.add(column.getLabel(), ((DirectoryTable.BooleanColumn) column).toBooleans());
             } else {
-                this.pvResult = pvResult;
+                namedValues.add(column.getLabel(), column.toStrings());
             }
         }
 
-        /**
-         * Called back by the service to acquire the client name.
-         *
-         * @see org.epics.pvData.pv.Requester#getRequesterName()
-         */
-        @Override
-        public String getRequesterName() {
-            return CLIENT_NAME;
-        }
+        /* Set up a printout formatter for our NamedValues system */
+        NamedValuesFormatter formatter =
+                NamedValuesFormatter.create(NamedValuesFormatter.STYLE_COLUMNS);
+        formatter.setWhetherDisplayLabels(printLabels);
+        formatter.assignNamedValues(namedValues);
+        formatter.display(System.out);
 
-        /**
-         * Called back by the service to issue messages
-         * while it is processing requests for you.
-         *
-         * @see org.epics.pvData.pv.Requester#message(java.lang.String,
-         * org.epics.pvdata.pv.MessageType)
-         */
-        @Override
-        public void message(String message, MessageType messageType) {
-            System.out.printf("Message from %s %s: %s", SERVICE_NAME,
-                    messageType.toString(), message);
-        }
+        _dbg(table.getPVStructure().toString());
+
+        return table.getRowCount();
     }
 
     private static void _dbg(String debug_message) {
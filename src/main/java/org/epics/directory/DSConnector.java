@@ -0,0 +1,58 @@
+/**
+ * DSConnector is the interface between the directory service and its backend.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import org.epics.pvdata.pv.PVStructure;
+
+/**
+ * DSConnector answers the queries of the directory service.
+ *
+ * The connector used by DSService is selected by the system property ds.connector:
+ * <pre>
+ *     cf          - CFConnector, the ChannelFinder web service (default)
+ *     file        - CFConnector answering from the file named by ds.connector.file
+ *                   (see FileChannelSource)
+ *     class name  - any other implementation, with a public no-argument constructor
+ * </pre>
+ *
+ * A connector is used by many threads concurrently, so implementations must be thread safe.
+ */
+public interface DSConnector {
+
+    /**
+     * Starts the connector (e.g. loads data or starts background threads).
+     * Called once, before the first request.
+     */
+    void start();
+
+    /**
+     * Stops the connector and releases its resources.
+     */
+    void stop();
+
+    /**
+     * getData performs a query.
+     *
+     * @param args pvData structure holding the arguments (query, show, sort, ...)
+     * @return NTTable structure with the results
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    PVStructure getData(PVStructure args);
+
+    /**
+     * @return true if the connector is able to answer queries
+     */
+    boolean isHealthy();
+}
@@ -0,0 +1,456 @@
+/**
+ * DSLoad generates load on the DSService for throughput and latency measurements.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.epics.pvaccess.server.rpc.RPCRequestException;
+
+/**
+ * DSLoad is the load test mode of DSClient: it replays a mix of requests
+ * read from a file against the service and reports the throughput and the
+ * latency percentiles.
+ *
+ * The concurrency worker threads share a DirectoryClient with one connection
+ * per worker, which is opened once and reused for all requests.
+ *
+ * With a target rate, the load is open loop: request i is due at
+ * start + i / rate, independent of how long earlier requests took. Its response
+ * time is measured from that intended start, so that requests delayed because
+ * all workers were busy (or the service stalled) are counted with their full
+ * waiting time (no coordinated omission). The service time, measured from the
+ * actual send, is reported separately. Without a rate, every worker sends its
+ * next request as soon as the previous one is answered (closed loop).
+ *
+ * The request file has one request per line, in the syntax of the DSClient
+ * command line (query first, then show=, sort=, filter=, limit=, offset=,
+ * encoding=, types=, client=, owner); empty lines and lines starting with # are ignored.
+ * The requests are sent in file order, cycling through the file.
+ *
+ * In replay mode, the requests are read from an access log of the service
+ * (see AccessLog) and sent once each, open loop, at their logged arrival times
+ * relative to the first one, divided by the speed factor.
+ */
+final class DSLoad {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final List<String> REQUEST_ARGUMENTS = Arrays.asList(
+            "query", "show", "sort", "filter", "limit", "offset", "encoding", "types", "client");
+    private static final double[] PERCENTILES = {0.50, 0.90, 0.99, 0.999};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+    private final String serviceName;
+    private final List<Map<String, String>> requests;
+    private final long[] schedule;
+    private final double speed;
+    private final int concurrency;
+    private final double rate;
+    private final long duration;
+    private final long warmup;
+    private final double timeout;
+
+    private final DSMetrics.Histogram response = new DSMetrics.Histogram(5);
+    private final DSMetrics.Histogram service = new DSMetrics.Histogram(5);
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+    private long elapsed = 0;
+
+    /**
+     * @param serviceName name of the service to send the requests to
+     * @param requests the request mix (request arguments)
+     * @param concurrency number of worker threads (and connections)
+     * @param rate target rate in requests per second (0 = closed loop)
+     * @param duration length of the measurement in seconds
+     * @param warmup time in seconds before the measurement, whose results are not recorded
+     * @param timeout request timeout in seconds
+     */
+    DSLoad(String serviceName, List<Map<String, String>> requests, int concurrency, double rate,
+            long duration, long warmup, double timeout) {
+        this(serviceName, requests, null, 1.0, concurrency, rate, duration, warmup, timeout);
+    }
+
+    /**
+     * Creates a replay of logged requests.
+     *
+     * @param serviceName name of the service to send the requests to
+     * @param entries the logged requests, in order of arrival
+     * @param speed factor by which the replay is faster than the original
+     * @param concurrency number of worker threads (and connections)
+     * @param warmup time in seconds at the start of the replay, whose results are not recorded
+     * @param timeout request timeout in seconds
+     */
+    DSLoad(String serviceName, List<AccessLog.Entry> entries, double speed, int concurrency, long warmup,
+            double timeout) {
+        this(serviceName, replayRequests(entries), replaySchedule(entries, speed), speed, concurrency, 0.0,
+                0, warmup, timeout);
+    }
+
+    private DSLoad(String serviceName, List<Map<String, String>> requests, long[] schedule, double speed,
+            int concurrency, double rate, long duration, long warmup, double timeout) {
+        this.serviceName = serviceName;
+        this.requests = requests;
+        this.schedule = schedule;
+        this.speed = speed;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs a load test configured by DSClient command line arguments:
+     * <pre>
+     *     load=&lt;file&gt;        file with the request mix
+     *     concurrency=&lt;n&gt;   number of worker threads and connections (default: 4)
+     *     rate=&lt;r&gt;          target rate in requests/s (default: 0 = closed loop)
+     *     duration=&lt;s&gt;      measurement time in seconds (default: 10)
+     *     warmup=&lt;s&gt;        warm up time in seconds, not recorded (default: 2)
+     *     timeout=&lt;s&gt;       request timeout in seconds (default: 5)
+     * </pre>
+     * or replays an access log:
+     * <pre>
+     *     replay=&lt;file&gt;      access log of the service
+     *     speed=&lt;f&gt;         replay speed relative to the original (default: 1)
+     *     concurrency, warmup and timeout as above
+     * </pre>
+     *
+     * @param serviceName name of the service to load
+     * @param args the command line arguments
+     * @return exit status: 0 if all requests succeeded, 1 if some failed, -1 on usage errors
+     */
+    static int run(String serviceName, String[] args) {
+        File file = null;
+        File log = null;
+        double speed = 1.0;
+        int concurrency = 4;
+        double rate = 0.0;
+        long duration = 10;
+        long warmup = 2;
+        double timeout = 5.0;
+        try {
+            for (String s : args) {
+                String[] kv = s.split("=", 2);
+                if (kv.length < 2) {
+                    System.err.println("Unrecognized load argument '" + s + "'; exiting.");
+                    return -1;
+                }
+                if (kv[0].equals("load")) {
+                    file = new File(kv[1]);
+                } else if (kv[0].equals("replay")) {
+                    log = new File(kv[1]);
+                } else if (kv[0].equals("speed")) {
+                    speed = Double.parseDouble(kv[1]);
+                } else if (kv[0].equals("concurrency")) {
+                    concurrency = Integer.parseInt(kv[1]);
+                } else if (kv[0].equals("rate")) {
+                    rate = Double.parseDouble(kv[1]);
+                } else if (kv[0].equals("duration")) {
+                    duration = Long.parseLong(kv[1]);
+                } else if (kv[0].equals("warmup")) {
+                    warmup = Long.parseLong(kv[1]);
+                } else if (kv[0].equals("timeout")) {
+                    timeout = Double.parseDouble(kv[1]);
+                } else {
+                    System.err.println("Unrecognized load argument '" + s + "'; exiting.");
+                    return -1;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number in load arguments (" + e.getMessage() + "); exiting.");
+            return -1;
+        }
+        if (concurrency <= 0 || rate < 0 || duration <= 0 || warmup < 0 || timeout <= 0 || speed <= 0
+                || (log != null && (file != null || rate > 0))) {
+            System.err.println("Invalid load arguments; exiting.");
+            return -1;
+        }
+
+        if (log != null) {
+            List<AccessLog.Entry> entries;
+            try {
+                entries = AccessLog.readAll(log);
+            } catch (IOException e) {
+                System.err.println("Unable to read access log " + log + ": " + e.getMessage() + "; exiting.");
+                return -1;
+            }
+            if (entries.isEmpty()) {
+                System.err.println("No requests in " + log + "; exiting.");
+                return -1;
+            }
+            DSLoad replay = new DSLoad(serviceName, entries, speed, concurrency, warmup, timeout);
+            if (!replay.run()) {
+                return -1;
+            }
+            replay.report(System.out);
+            return replay.errors.get() > 0 ? 1 : 0;
+        }
+
+        List<Map<String, String>> requests;
+        try {
+            requests = readRequests(file);
+        } catch (IOException e) {
+            System.err.println("Unable to read requests from " + file + ": " + e.getMessage() + "; exiting.");
+            return -1;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "; exiting.");
+            return -1;
+        }
+        if (requests.isEmpty()) {
+            System.err.println("No requests in " + file + "; exiting.");
+            return -1;
+        }
+
+        DSLoad load = new DSLoad(serviceName, requests, concurrency, rate, duration, warmup, timeout);
+        if (!load.run()) {
+            return -1;
+        }
+        load.report(System.out);
+        return load.errors.get() > 0 ? 1 : 0;
+    }
+
+    /**
+     * Reads the request mix.
+     *
+     * @param file file with one request per line
+     * @return the requests
+     * @throws IllegalArgumentException if a line has an unknown argument
+     */
+    static List<Map<String, String>> readRequests(File file) throws IOException {
+        List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                Map<String, String> arguments = new LinkedHashMap<String, String>();
+                String[] words = line.split("\\s+");
+                for (int i = 0; i < words.length; i++) {
+                    String[] kv = words[i].split("=", 2);
+                    if (words[i].equals("owner")) {
+                        arguments.put("owner", "1");
+                    } else if (kv.length == 2 && REQUEST_ARGUMENTS.contains(kv[0])) {
+                        arguments.put(kv[0], kv[1]);
+                    } else if (i == 0) {
+                        arguments.put("query", words[i]);
+                    } else {
+                        throw new IllegalArgumentException("Unrecognized argument '" + words[i]
+                                + "' in line " + lineNumber + " of " + file);
+                    }
+                }
+                if (!arguments.containsKey("encoding")) {
+                    arguments.put("encoding", "dict");
+                }
+                requests.add(arguments);
+            }
+        } finally {
+            in.close();
+        }
+        return requests;
+    }
+
+    /* The arguments of the logged requests, including the client identity */
+    private static List<Map<String, String>> replayRequests(List<AccessLog.Entry> entries) {
+        List<Map<String, String>> requests = new ArrayList<Map<String, String>>(entries.size());
+        for (AccessLog.Entry e : entries) {
+            Map<String, String> arguments = new LinkedHashMap<String, String>(e.arguments);
+            if (e.client.length() > 0) {
+                arguments.put("client", e.client);
+            }
+            requests.add(arguments);
+        }
+        return requests;
+    }
+
+    /* The send times of the logged requests (in nanoseconds from the start), scaled by the speed */
+    private static long[] replaySchedule(List<AccessLog.Entry> entries, double speed) {
+        long[] schedule = new long[entries.size()];
+        long first = entries.get(0).time;
+        for (int i = 0; i < schedule.length; i++) {
+            schedule[i] = (long) (TimeUnit.MILLISECONDS.toNanos(Math.max(0, entries.get(i).time - first)) / speed);
+        }
+        return schedule;
+    }
+
+    /**
+     * Connects the workers, runs the warm up and the measurement.
+     *
+     * @return false if the service could not be reached
+     */
+    boolean run() {
+        final DirectoryClient client = new DirectoryClient(serviceName, concurrency, timeout);
+        try {
+            if (!client.waitConnect(5.0)) {
+                System.err.println("Unable to contact " + serviceName + "; exiting.");
+                return false;
+            }
+            _dbg(concurrency + " connections to " + serviceName + " established");
+
+            final long start = System.nanoTime();
+            final long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+            final long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+            final CountDownLatch done = new CountDownLatch(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work(client, start, measureStart, end);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "ds-load-" + (i + 1));
+                worker.setDaemon(true);
+                worker.start();
+            }
+            done.await();
+            /* When the service falls behind, the last requests complete after the planned end */
+            elapsed = System.nanoTime() - measureStart;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            client.destroy();
+        }
+    }
+
+    private void work(DirectoryClient client, long start, long measureStart, long end) {
+        double interval = rate > 0 ? 1e9 / rate : 0.0;
+        while (true) {
+            long i = next.getAndIncrement();
+            long intended;
+            if (schedule != null) {
+                if (i >= schedule.length) {
+                    return;
+                }
+                intended = start + schedule[(int) i];
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else if (rate > 0) {
+                intended = start + (long) (i * interval);
+                if (intended - end >= 0) {
+                    return;
+                }
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                intended = System.nanoTime();
+                if (intended - end >= 0) {
+                    return;
+                }
+            }
+
+            Map<String, String> request = requests.get((int) (i % requests.size()));
+            long sendTime = System.nanoTime();
+            boolean ok;
+            try {
+                client.request(request);
+                ok = true;
+            } catch (RPCRequestException e) {
+                _dbg("Request failed: " + e.getMessage());
+                ok = false;
+            } catch (RuntimeException e) {
+                _dbg("Request failed: " + e);
+                ok = false;
+            }
+            long doneTime = System.nanoTime();
+
+            if (intended - measureStart < 0) {
+                continue;   // warm up
+            }
+            sent.incrementAndGet();
+            if (!ok) {
+                errors.incrementAndGet();
+                continue;
+            }
+            completed.incrementAndGet();
+            response.record((doneTime - intended) / 1000);
+            service.record((doneTime - sendTime) / 1000);
+            long lag = sendTime - intended;
+            long m = maxLag.get();
+            while (lag > m && !maxLag.compareAndSet(m, lag)) {
+                m = maxLag.get();
+            }
+        }
+    }
+
+    /**
+     * Prints the results of the measurement.
+     *
+     * @param out the stream to print to
+     */
+    void report(PrintStream out) {
+        double seconds = elapsed / 1e9;
+        if (schedule != null) {
+            out.printf("%d requests replayed in %.1f s, %d connections, speed %s%n", sent.get(), seconds,
+                    concurrency, speed);
+        } else {
+            out.printf("%d requests (%d types) in %.1f s, %d connections, %s%n", sent.get(), requests.size(),
+                    seconds, concurrency, rate > 0 ? "target rate " + rate + " requests/s" : "closed loop");
+        }
+        out.printf("throughput: %.1f requests/s, %d errors%n", seconds > 0 ? completed.get() / seconds : 0.0,
+                errors.get());
+        if (rate > 0 || schedule != null) {
+            out.printf("max send delay: %.3f ms%s%n", maxLag.get() / 1e6,
+                    maxLag.get() > TimeUnit.SECONDS.toNanos(1) ? " (target rate not reached)" : "");
+        }
+        printLatency(out, "response time", response);
+        printLatency(out, "service time", service);
+    }
+
+    private static void printLatency(PrintStream out, String name, DSMetrics.Histogram h) {
+        out.printf("%-14s (ms): mean %.3f", name, h.getMean() / 1000);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            out.printf(", %s %.3f", PERCENTILE_LABELS[i], h.percentile(PERCENTILES[i]) / 1000);
+        }
+        out.printf(", max %.3f%n", h.getMax() / 1000.0);
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + DSLoad.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
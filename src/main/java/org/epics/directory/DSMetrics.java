@@ -0,0 +1,333 @@
+/**
+ * DSMetrics collects the operational statistics of the directory service.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.FieldBuilder;
+import org.epics.pvdata.pv.PVDoubleArray;
+import org.epics.pvdata.pv.PVLongArray;
+import org.epics.pvdata.pv.PVStringArray;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.ScalarType;
+
+/**
+ * DSMetrics holds the counters and latency histograms of the service.
+ *
+ * Recording is lock-free and does not allocate (atomic increments only),
+ * so the statistics are always on. A snapshot is taken by toNTTable(),
+ * which is what the ds:stats service returns.
+ *
+ * Latencies are split into the phases of a request:
+ * <pre>
+ *     queue  - waiting for a worker thread
+ *     fetch  - retrieving the channels from the source (ChannelFinder or local copy)
+ *     sort   - determining the row order
+ *     build  - creating the NTTable columns and structure
+ *     reply  - handing the result to pvAccess (serialization and sending)
+ *     total  - from arrival of the request until the reply was handed over
+ * </pre>
+ *
+ * Values that are owned by other parts of the service (cache and queue state)
+ * are registered as gauges and read when a snapshot is taken.
+ */
+final class DSMetrics {
+
+    /**
+     * Gauge provides the current value of a quantity when a snapshot is taken.
+     */
+    interface Gauge {
+        long get();
+    }
+
+    private static final String[] LABELS = {"name", "unit", "count", "mean", "p50", "p90", "p99", "max"};
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+
+    final Histogram queue = new Histogram();
+    final Histogram fetch = new Histogram();
+    final Histogram sort = new Histogram();
+    final Histogram build = new Histogram();
+    final Histogram reply = new Histogram();
+    final Histogram total = new Histogram();
+    final Histogram rows = new Histogram();
+
+    private final long startTime = System.currentTimeMillis();
+    private final List<String> gaugeNames = new ArrayList<String>();
+    private final List<String> gaugeUnits = new ArrayList<String>();
+    private final List<Gauge> gauges = new ArrayList<Gauge>();
+
+    /**
+     * Registers a gauge.
+     *
+     * @param name name of the value in the snapshot
+     * @param unit unit of the value
+     * @param gauge provider of the value
+     */
+    synchronized void gauge(String name, String unit, Gauge gauge) {
+        gaugeNames.add(name);
+        gaugeUnits.add(unit);
+        gauges.add(gauge);
+    }
+
+    /**
+     * @param startNanos start time as returned by System.nanoTime()
+     * @return microseconds since start time
+     */
+    static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * Creates a snapshot of all statistics.
+     *
+     * The snapshot is an NTTable with one row per statistic. Counters and gauges
+     * have their value in the count column (the other columns are NaN),
+     * histograms have the number of recorded values, their mean, percentiles
+     * and maximum. Latencies are in milliseconds.
+     *
+     * @return NTTable with the current statistics
+     */
+    synchronized PVStructure toNTTable() {
+        List<String> names = new ArrayList<String>();
+        List<String> units = new ArrayList<String>();
+        List<Long> counts = new ArrayList<Long>();
+        List<double[]> stats = new ArrayList<double[]>();
+
+        double uptime = (System.currentTimeMillis() - startTime) / 1000.0;
+        addValue(names, units, counts, stats, "uptime", "s", (long) uptime);
+        addValue(names, units, counts, stats, "requests", "", requests.get());
+        names.add("requests.rate");
+        units.add("1/s");
+        counts.add(requests.get());
+        stats.add(new double[] {uptime > 0 ? requests.get() / uptime : 0.0,
+                Double.NaN, Double.NaN, Double.NaN, Double.NaN});
+        addValue(names, units, counts, stats, "errors", "", errors.get());
+        addValue(names, units, counts, stats, "rejected", "", rejected.get());
+        addValue(names, units, counts, stats, "timeouts", "", timeouts.get());
+
+        addHistogram(names, units, counts, stats, "latency.total", "ms", total, 0.001);
+        addHistogram(names, units, counts, stats, "latency.queue", "ms", queue, 0.001);
+        addHistogram(names, units, counts, stats, "latency.fetch", "ms", fetch, 0.001);
+        addHistogram(names, units, counts, stats, "latency.sort", "ms", sort, 0.001);
+        addHistogram(names, units, counts, stats, "latency.build", "ms", build, 0.001);
+        addHistogram(names, units, counts, stats, "latency.reply", "ms", reply, 0.001);
+        addHistogram(names, units, counts, stats, "result.rows", "rows", rows, 1.0);
+
+        for (int i = 0; i < gauges.size(); i++) {
+            addValue(names, units, counts, stats, gaugeNames.get(i), gaugeUnits.get(i), gauges.get(i).get());
+        }
+
+        int n = names.size();
+        long[] countColumn = new long[n];
+        double[][] statColumns = new double[5][n];
+        for (int i = 0; i < n; i++) {
+            countColumn[i] = counts.get(i);
+            for (int c = 0; c < 5; c++) {
+                statColumns[c][i] = stats.get(i)[c];
+            }
+        }
+
+        FieldBuilder topBuilder = FieldFactory.getFieldCreate().createFieldBuilder();
+        topBuilder.setId("epics:nt/NTTable:1.0");
+        topBuilder.addArray("labels", ScalarType.pvString);
+        FieldBuilder valueNestedBuilder = topBuilder.addNestedStructure("value");
+        valueNestedBuilder.addArray(LABELS[0], ScalarType.pvString);
+        valueNestedBuilder.addArray(LABELS[1], ScalarType.pvString);
+        valueNestedBuilder.addArray(LABELS[2], ScalarType.pvLong);
+        for (int c = 3; c < LABELS.length; c++) {
+            valueNestedBuilder.addArray(LABELS[c], ScalarType.pvDouble);
+        }
+        valueNestedBuilder.endNested();
+
+        PVStructure pvTop = PVDataFactory.getPVDataCreate().createPVStructure(topBuilder.createStructure());
+        PVStructure pvValue = pvTop.getStructureField("value");
+        ((PVStringArray) pvValue.getScalarArrayField(LABELS[0], ScalarType.pvString))
+                .put(0, n, names.toArray(new String[n]), 0);
+        ((PVStringArray) pvValue.getScalarArrayField(LABELS[1], ScalarType.pvString))
+                .put(0, n, units.toArray(new String[n]), 0);
+        ((PVLongArray) pvValue.getScalarArrayField(LABELS[2], ScalarType.pvLong))
+                .put(0, n, countColumn, 0);
+        for (int c = 3; c < LABELS.length; c++) {
+            ((PVDoubleArray) pvValue.getScalarArrayField(LABELS[c], ScalarType.pvDouble))
+                    .put(0, n, statColumns[c - 3], 0);
+        }
+        ((PVStringArray) pvTop.getScalarArrayField("labels", ScalarType.pvString))
+                .put(0, LABELS.length, LABELS, 0);
+        return pvTop;
+    }
+
+    private static void addValue(List<String> names, List<String> units, List<Long> counts,
+            List<double[]> stats, String name, String unit, long value) {
+        names.add(name);
+        units.add(unit);
+        counts.add(value);
+        stats.add(new double[] {Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN});
+    }
+
+    private static void addHistogram(List<String> names, List<String> units, List<Long> counts,
+            List<double[]> stats, String name, String unit, Histogram h, double scale) {
+        long[] buckets = h.buckets();
+        long n = Histogram.total(buckets);
+        names.add(name);
+        units.add(unit);
+        counts.add(n);
+        if (n == 0) {
+            stats.add(new double[] {Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN});
+        } else {
+            stats.add(new double[] {
+                scale * h.sum.get() / h.count.get(),
+                scale * Math.min(h.percentile(buckets, n, 0.50), h.max.get()),
+                scale * Math.min(h.percentile(buckets, n, 0.90), h.max.get()),
+                scale * Math.min(h.percentile(buckets, n, 0.99), h.max.get()),
+                scale * h.max.get()});
+        }
+    }
+
+    /**
+     * Histogram counts non-negative values in logarithmic buckets:
+     * each power of two is split into 2^subBits buckets (four by default),
+     * so that percentiles are accurate to within 2^-(subBits+1) (12.5%).
+     */
+    static final class Histogram {
+
+        private final int subBits;
+        private final int sub;
+        private final AtomicLongArray counts;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            this(2);
+        }
+
+        /**
+         * @param subBits number of bits of precision within each power of two
+         */
+        Histogram(int subBits) {
+            this.subBits = subBits;
+            this.sub = 1 << subBits;
+            this.counts = new AtomicLongArray(sub * (64 - subBits + 1));
+        }
+
+        /**
+         * Records a value.
+         *
+         * @param value the value (negative values are recorded as 0)
+         */
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+        }
+
+        long[] buckets() {
+            long[] b = new long[counts.length()];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = counts.get(i);
+            }
+            return b;
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return largest recorded value
+         */
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return mean of the recorded values (NaN if there are none)
+         */
+        double getMean() {
+            long n = count.get();
+            return n > 0 ? (double) sum.get() / n : Double.NaN;
+        }
+
+        /**
+         * @param p the percentile (between 0 and 1)
+         * @return the value at the percentile (NaN if there are no values)
+         */
+        double percentile(double p) {
+            long[] b = buckets();
+            long n = total(b);
+            return n > 0 ? Math.min(percentile(b, n, p), max.get()) : Double.NaN;
+        }
+
+        int bucket(long value) {
+            if (value < sub) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int s = (int) (value >>> (exp - subBits)) & (sub - 1);
+            return sub + (exp - subBits) * sub + s;
+        }
+
+        /* Returns the midpoint of the values counted in a bucket */
+        double value(int bucket) {
+            if (bucket < sub) {
+                return bucket;
+            }
+            int exp = (bucket - sub) / sub + subBits;
+            int s = (bucket - sub) % sub;
+            long width = 1L << (exp - subBits);
+            long lower = (sub + s) * width;
+            return lower + (width - 1) / 2.0;
+        }
+
+        static long total(long[] buckets) {
+            long n = 0;
+            for (long b : buckets) {
+                n += b;
+            }
+            return n;
+        }
+
+        double percentile(long[] buckets, long n, double p) {
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return value(i);
+                }
+            }
+            return value(buckets.length - 1);
+        }
+    }
+}
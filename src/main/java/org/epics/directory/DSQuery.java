@@ -0,0 +1,448 @@
+/**
+ * DSQuery holds the parsed arguments of a directory service request.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStructure;
+
+/**
+ * DSQuery is the immutable, normalized form of the arguments of a request.
+ *
+ * Two requests that ask for the same result (same query string, same show and
+ * sort lists after splitting and removing doubles, same filter, same owner setting,
+ * same page, same encoding, same column types) map to equal DSQuery instances, so DSQuery can be used
+ * as a key for caching results.
+ */
+final class DSQuery {
+
+    static final String TYPE_STRING = "string";
+    static final String TYPE_DOUBLE = "double";
+    static final String TYPE_LONG = "long";
+    static final String TYPE_AUTO = "auto";
+
+    private final String query;
+    private final List<String> show;
+    private final List<String> sort;
+    private final List<SortKey> sortKeys;
+    private final ValueFilter filter;
+    private final boolean owner;
+    private final int offset;
+    private final int limit;
+    private final String since;
+    private final boolean dictionary;
+    private final Map<String, String> types;
+    private final String defaultType;
+    private final String key;
+
+    private DSQuery(String query, List<String> show, List<SortKey> sortKeys, ValueFilter filter,
+            boolean owner, int offset, int limit, String since, boolean dictionary,
+            Map<String, String> types, String defaultType) {
+        this.query = query;
+        this.show = show;
+        this.sortKeys = sortKeys;
+        this.filter = filter;
+        this.owner = owner;
+        this.offset = offset;
+        this.limit = limit;
+        this.since = since;
+        this.dictionary = dictionary;
+        this.types = types;
+        this.defaultType = defaultType;
+        if (sortKeys != null) {
+            List<String> names = new ArrayList<String>(sortKeys.size());
+            for (SortKey k : sortKeys) {
+                names.add(k.getProperty());
+            }
+            sort = Collections.unmodifiableList(names);
+        } else {
+            sort = null;
+        }
+
+        StringBuilder sb = new StringBuilder(query);
+        sb.append('\0');
+        if (show != null) {
+            sb.append(show.toString());
+        }
+        sb.append('\0');
+        if (sortKeys != null) {
+            sb.append(sortKeys.toString());
+        }
+        sb.append('\0');
+        if (filter != null) {
+            sb.append(filter.toString());
+        }
+        sb.append('\0').append(owner);
+        sb.append('\0').append(offset).append('\0').append(limit);
+        if (since != null) {
+            sb.append('\0').append(since);
+        }
+        if (dictionary) {
+            sb.append('\0').append("dict");
+        }
+        if (types != null || defaultType != null) {
+            sb.append('\0').append(types).append(defaultType);
+        }
+        key = sb.toString();
+    }
+
+    /**
+     * Parses the arguments of a request.
+     *
+     * @param args pvData structure holding the arguments
+     * @return the parsed arguments
+     * @throws IllegalArgumentException if the mandatory query argument is missing
+     *         or the offset or limit argument is not a valid number
+     *         or offset/limit and since are combined
+     *         or the encoding argument is unknown
+     *         or the sort or filter argument is invalid
+     *         or filter and since are combined
+     *         or the types argument is invalid
+     */
+    static DSQuery parse(PVStructure args) {
+        PVString pvStringArg;
+        String query;
+        List<String> show = null;
+        List<SortKey> sortKeys = null;
+        ValueFilter filter = null;
+        boolean owner = false;
+        int offset = 0;
+        int limit = 0;
+        String since = null;
+        boolean dictionary = false;
+        Map<String, String> types = null;
+        String defaultType = null;
+
+        pvStringArg = args.getStringField("query");
+        if (pvStringArg == null) {
+            throw new IllegalArgumentException("No query in argument list");
+        }
+        query = pvStringArg.get();
+
+        pvStringArg = args.getStringField("show");
+        if (pvStringArg != null) {
+            show = new ArrayList<String>(Arrays.asList(pvStringArg.get().split(",")));
+            show.add("channel");
+            show = Collections.unmodifiableList(removeDoubles(show));
+        }
+
+        pvStringArg = args.getStringField("types");
+        if (pvStringArg != null && pvStringArg.get().trim().length() > 0) {
+            types = new LinkedHashMap<String, String>();
+            for (String s : pvStringArg.get().split(",")) {
+                String[] parts = s.trim().split(":", -1);
+                if (parts.length == 1 && parts[0].equals(TYPE_AUTO)) {
+                    defaultType = TYPE_AUTO;
+                } else if (parts.length == 2 && parts[0].length() > 0 && isType(parts[1])) {
+                    types.put(parts[0], parts[1]);
+                } else {
+                    throw new IllegalArgumentException("Invalid types argument element '" + s + "'");
+                }
+            }
+            types = types.isEmpty() ? null : Collections.unmodifiableMap(types);
+        }
+
+        pvStringArg = args.getStringField("sort");
+        if (pvStringArg != null) {
+            List<SortKey> keys = new ArrayList<SortKey>();
+            for (String s : removeDoubles(Arrays.asList(pvStringArg.get().split(",")))) {
+                SortKey k = SortKey.parse(s);
+                keys.add(k.withType(getType(types, defaultType, k.getProperty())));
+            }
+            sortKeys = Collections.unmodifiableList(keys);
+        }
+
+        pvStringArg = args.getStringField("filter");
+        if (pvStringArg != null && pvStringArg.get().trim().length() > 0) {
+            filter = ValueFilter.parse(pvStringArg.get());
+        }
+
+        pvStringArg = args.getStringField("owner");
+        if (pvStringArg != null) {
+            owner = true;
+        }
+
+        pvStringArg = args.getStringField("offset");
+        if (pvStringArg != null) {
+            offset = parseCount("offset", pvStringArg.get());
+        }
+
+        pvStringArg = args.getStringField("limit");
+        if (pvStringArg != null) {
+            limit = parseCount("limit", pvStringArg.get());
+        }
+
+        pvStringArg = args.getStringField("since");
+        if (pvStringArg != null) {
+            since = pvStringArg.get().trim();
+            if (offset > 0 || limit > 0) {
+                throw new IllegalArgumentException("The since argument cannot be combined with offset or limit");
+            }
+            if (filter != null) {
+                throw new IllegalArgumentException("The since argument cannot be combined with filter");
+            }
+        }
+
+        pvStringArg = args.getStringField("encoding");
+        if (pvStringArg != null) {
+            String encoding = pvStringArg.get().trim();
+            if (encoding.equals("dict")) {
+                dictionary = true;
+            } else if (!encoding.equals("plain") && encoding.length() > 0) {
+                throw new IllegalArgumentException("Invalid encoding argument '" + encoding + "'");
+            }
+        }
+
+        return new DSQuery(query, show, sortKeys, filter, owner, offset, limit, since, dictionary,
+                types, defaultType);
+    }
+
+    private static boolean isType(String type) {
+        return type.equals(TYPE_STRING) || type.equals(TYPE_DOUBLE) || type.equals(TYPE_LONG)
+                || type.equals(TYPE_AUTO);
+    }
+
+    private static String getType(Map<String, String> types, String defaultType, String property) {
+        String type = types != null ? types.get(property) : null;
+        if (type == null) {
+            type = defaultType;
+        }
+        return TYPE_STRING.equals(type) ? null : type;
+    }
+
+    private static int parseCount(String name, String value) {
+        int n;
+        try {
+            n = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " argument '" + value + "'");
+        }
+        if (n < 0) {
+            throw new IllegalArgumentException("Invalid " + name + " argument '" + value + "'");
+        }
+        return n;
+    }
+
+    private static List<String> removeDoubles(List<String> l) {
+        return new ArrayList<String>(new LinkedHashSet<String>(l));
+    }
+
+    /**
+     * @return the ChannelFinder query string
+     */
+    String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return the properties and tags to show (always including "channel"),
+     *         or null if all columns are to be shown
+     */
+    List<String> getShow() {
+        return show;
+    }
+
+    /**
+     * @return the properties to sort by, or null if the result is not sorted
+     */
+    List<String> getSort() {
+        return sort;
+    }
+
+    /**
+     * @return the sort keys (properties with sort modes), or null if the result is not sorted
+     */
+    List<SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    /**
+     * @return the filter on property values, or null if the result is not filtered
+     */
+    ValueFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return true if the owner column is to be shown
+     */
+    boolean isOwner() {
+        return owner;
+    }
+
+    /**
+     * @return index of the first row to return (0 = from the start)
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return maximum number of rows to return (0 = no limit)
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the change token of the result the client has, "" for none,
+     *         or null if the client does not track changes
+     */
+    String getSince() {
+        return since;
+    }
+
+    /**
+     * @return true if the string columns are to be dictionary encoded
+     */
+    boolean isDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param property name of a property
+     * @return the requested type of the property column (TYPE_DOUBLE, TYPE_LONG or TYPE_AUTO),
+     *         or null for a string column
+     */
+    String getType(String property) {
+        return getType(types, defaultType, property);
+    }
+
+    /**
+     * @return true if only a page (offset/limit) of the result is requested
+     */
+    boolean isPaged() {
+        return offset > 0 || limit > 0;
+    }
+
+    /**
+     * SortKey is an element of the sort argument: the name of a property,
+     * optionally followed by the modifiers ":num" (compare the values as numbers)
+     * and ":desc" (sort in descending order).
+     *
+     * A property with a numeric column type (see the types argument) is always
+     * compared as numbers; one with the type auto is compared as numbers if all
+     * its values are numbers.
+     */
+    static final class SortKey {
+        private final String property;
+        private final boolean numeric;
+        private final boolean inferred;
+        private final boolean descending;
+
+        private SortKey(String property, boolean numeric, boolean inferred, boolean descending) {
+            this.property = property;
+            this.numeric = numeric;
+            this.inferred = inferred;
+            this.descending = descending;
+        }
+
+        /**
+         * Parses an element of the sort argument, e.g. "position:num:desc".
+         *
+         * @param s the element
+         * @return the sort key
+         * @throws IllegalArgumentException if a modifier is unknown
+         */
+        static SortKey parse(String s) {
+            String[] parts = s.split(":", -1);
+            boolean numeric = false;
+            boolean descending = false;
+            for (int i = 1; i < parts.length; i++) {
+                String modifier = parts[i].trim();
+                if (modifier.equals("num")) {
+                    numeric = true;
+                } else if (modifier.equals("desc")) {
+                    descending = true;
+                } else if (!modifier.equals("asc")) {
+                    throw new IllegalArgumentException("Invalid sort modifier ':" + parts[i] + "' in '" + s + "'");
+                }
+            }
+            return new SortKey(parts[0], numeric, false, descending);
+        }
+
+        /* Applies the column type of the property */
+        SortKey withType(String type) {
+            if (numeric || type == null) {
+                return this;
+            }
+            return new SortKey(property, !type.equals(TYPE_AUTO), type.equals(TYPE_AUTO), descending);
+        }
+
+        /**
+         * @return name of the property
+         */
+        String getProperty() {
+            return property;
+        }
+
+        /**
+         * @return true if the values are compared as numbers
+         */
+        boolean isNumeric() {
+            return numeric;
+        }
+
+        /**
+         * @return true if the values are compared as numbers only if all of them are numbers
+         */
+        boolean isInferred() {
+            return inferred;
+        }
+
+        /**
+         * @return true for descending order
+         */
+        boolean isDescending() {
+            return descending;
+        }
+
+        @Override
+        public String toString() {
+            return property + (numeric ? ":num" : "") + (descending ? ":desc" : "");
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DSQuery && key.equals(((DSQuery) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "query=" + query
+                + (show != null ? " show=" + show : "")
+                + (sortKeys != null ? " sort=" + sortKeys : "")
+                + (filter != null ? " filter=" + filter : "")
+                + (owner ? " owner" : "")
+                + (isPaged() ? " offset=" + offset + " limit=" + limit : "")
+                + (since != null ? " since=" + since : "")
+                + (dictionary ? " encoding=dict" : "")
+                + (types != null || defaultType != null ? " types=" + (types != null ? types : "")
+                        + (defaultType != null ? defaultType : "") : "");
+    }
+}
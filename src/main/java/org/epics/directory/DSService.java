@@ -16,12 +16,45 @@ package org.epics.directory;
  * #L%
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.epics.pvaccess.PVAException;
 import org.epics.pvaccess.server.rpc.RPCRequestException;
+import org.epics.pvaccess.server.rpc.RPCResponseCallback;
 import org.epics.pvaccess.server.rpc.RPCServer;
 import org.epics.pvaccess.server.rpc.RPCService;
+import org.epics.pvaccess.server.rpc.RPCServiceAsync;
+import org.epics.pvdata.factory.ConvertFactory;
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.factory.StatusFactory;
+import org.epics.pvdata.pv.Convert;
+import org.epics.pvdata.pv.Field;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.PVDataCreate;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVString;
 import org.epics.pvdata.pv.PVStructure;
 import org.epics.pvdata.pv.Status;
+import org.epics.pvdata.pv.StatusCreate;
 
 /**
  * DSService implements an EPICS V4 RPC service for retrieving data
@@ -32,8 +65,16 @@ import org.epics.pvdata.pv.Status;
  *     string query       - The query which is used to get data from the
  *                          directory service, e.g. "SR:C01-MG:G06*"
  * </pre>
- * 
+ *
  * The service returns results as a PVStructure of normative type NTTable.
+ * The queries are answered by a DSConnector, selected by the system property
+ * ds.connector (see createConnector).
+ *
+ * A second service (ds:batch) takes a structure of query argument structures,
+ * and returns a structure with one NTTable per query, under the same field names.
+ *
+ * A third service (ds:stats) returns the statistics of the service
+ * (see DSMetrics) as an NTTable.
  *
  * @author Ralph Lange (Ralph.Lange@gmx.de)
  *
@@ -41,38 +82,650 @@ import org.epics.pvdata.pv.Status;
 
 public class DSService {
 
-//    private static final StatusCreate statusCreate = StatusFactory.getStatusCreate();
-//    private static final Status okStatus = statusCreate.getStatusOK();
+    private static final StatusCreate statusCreate = StatusFactory.getStatusCreate();
+    private static final Status okStatus = statusCreate.getStatusOK();
 //    private static final Status missingRequiredArgumentStatus = statusCreate.createStatus(StatusType.ERROR,
 //            "Missing required argument", null);
     private static final String SERVICE_NAME = "ds";
+    private static final String STATS_SERVICE_NAME = SERVICE_NAME + ":stats";
+    private static final String BATCH_SERVICE_NAME = SERVICE_NAME + ":batch";
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final PVDataCreate pvDataCreate = PVDataFactory.getPVDataCreate();
+    private static final Convert convert = ConvertFactory.getConvert();
+
+    /**
+     * DSServiceImpl hands requests off to a bounded pool of worker threads,
+     * so that a slow directory query does not block the pvAccess server thread
+     * and the requests behind it.
+     *
+     * Every request passes the admission control first (see Admission), which may
+     * reject it, and which classifies it as interactive or batch. Queued requests are
+     * taken by the workers in the order assigned by the admission control, so that
+     * interactive requests overtake queued batch requests.
+     *
+     * When all workers are busy and the queue is full, a request is rejected
+     * immediately. The queue bound is enforced by reserving a queue slot for every
+     * task before it is queued; the slot is freed when a worker takes the task.
+     * A request that has not completed when its deadline expires
+     * is answered with an error status. Its admission is released only when its
+     * tasks have ended, so that requests running past their deadline still count
+     * against the limits of the admission control.
+     *
+     * If an access log is configured (see AccessLog), every answered single request
+     * is logged. At startup, the most frequent queries of the log can be executed
+     * before the service is registered (see warmUp), so that the first clients
+     * find warm caches.
+     */
+    private static class DSServiceImpl implements RPCServiceAsync {
+
+        private static final DSConnector dsConnector = createConnector();
+        private static final DSMetrics metrics = dsConnector instanceof CFConnector
+                ? ((CFConnector) dsConnector).getMetrics() : new DSMetrics();
+
+        private static final Comparator<Runnable> byOrder = new Comparator<Runnable>() {
+            @Override
+            public int compare(Runnable a, Runnable b) {
+                long x = ((Task) a).getReply().getOrder();
+                long y = ((Task) b).getReply().getOrder();
+                return x < y ? -1 : (x > y ? 1 : 0);
+            }
+        };
 
-    private static class DSServiceImpl implements RPCService {
+        private final ThreadPoolExecutor workers;
+        private final ScheduledExecutorService timer;
+        private final Admission admission;
+        private final AccessLog accessLog;
+        private final int queueSize;
+        private final Semaphore queueSlots;
+        private final long deadline;
 
-        private static CFConnector dsConnector = new CFConnector();
-        
         /**
-         * Execute the RPC request using the directory service connector
+         * @param threads number of worker threads
+         * @param queueSize maximum number of requests waiting for a worker
+         * @param deadline time (in milliseconds) after which a request fails, 0 for none
+         */
+        DSServiceImpl(int threads, int queueSize, long deadline) {
+            this.deadline = deadline;
+            this.queueSize = Math.max(queueSize, 1);
+            queueSlots = new Semaphore(this.queueSize);
+            workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(this.queueSize, byOrder),
+                    new NamedThreadFactory("ds-worker")) {
+                @Override
+                protected void beforeExecute(Thread thread, Runnable task) {
+                    queueSlots.release();
+                }
+
+                @Override
+                protected void afterExecute(Runnable task, Throwable t) {
+                    ((Task) task).getReply().tasksEnded(1);
+                }
+            };
+            admission = Admission.create(threads);
+            accessLog = AccessLog.create();
+            timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ds-deadline"));
+
+            metrics.gauge("workers.active", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return workers.getActiveCount();
+                }
+            });
+            metrics.gauge("workers.queued", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return workers.getQueue().size();
+                }
+            });
+            metrics.gauge("admission.batch", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return admission.batches.get();
+                }
+            });
+            metrics.gauge("admission.batch.active", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return admission.getBatchActive();
+                }
+            });
+            metrics.gauge("admission.throttled", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return admission.throttled.get();
+                }
+            });
+            metrics.gauge("admission.shed", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return admission.shed.get();
+                }
+            });
+            if (accessLog != null) {
+                metrics.gauge("log.written", "", new DSMetrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return accessLog.written.get();
+                    }
+                });
+                metrics.gauge("log.dropped", "", new DSMetrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return accessLog.dropped.get();
+                    }
+                });
+            }
+            metrics.gauge("connector.healthy", "", new DSMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return dsConnector.isHealthy() ? 1 : 0;
+                }
+            });
+        }
+
+        /**
+         * Start the directory service connector
+         */
+        void start() {
+            dsConnector.start();
+        }
+
+        /**
+         * Stop the directory service connector and the worker threads
+         */
+        void stop() {
+            workers.shutdownNow();
+            timer.shutdownNow();
+            dsConnector.stop();
+            if (accessLog != null) {
+                accessLog.close();
+            }
+        }
+
+        /**
+         * Warm up the connector (and the JVM) by executing the queries most frequently
+         * found in an access log, before the service is registered.
+         * The results also seed the cost estimates of the admission control.
+         *
+         * @param log the access log
+         * @param top number of queries to execute
+         * @param timeout time (in milliseconds) after which the warm up is ended
+         */
+        void warmUp(File log, int top, long timeout) {
+            long start = System.currentTimeMillis();
+            List<AccessLog.Entry> entries;
+            try {
+                entries = AccessLog.readAll(log);
+            } catch (IOException e) {
+                System.err.println("Skipping warm up, unable to read access log: " + e.getMessage());
+                return;
+            }
+            final Map<Map<String, String>, Integer> counts = new HashMap<Map<String, String>, Integer>();
+            Map<Map<String, String>, AccessLog.Entry> samples = new HashMap<Map<String, String>, AccessLog.Entry>();
+            for (AccessLog.Entry e : entries) {
+                if (e.outcome != AccessLog.ERROR) {
+                    Integer n = counts.get(e.arguments);
+                    counts.put(e.arguments, n == null ? 1 : n + 1);
+                    samples.put(e.arguments, e);
+                }
+            }
+            List<Map<String, String>> queries = new ArrayList<Map<String, String>>(counts.keySet());
+            Collections.sort(queries, new Comparator<Map<String, String>>() {
+                @Override
+                public int compare(Map<String, String> a, Map<String, String> b) {
+                    return counts.get(b) - counts.get(a);
+                }
+            });
+            int executed = 0;
+            int failed = 0;
+            for (Map<String, String> q : queries.subList(0, Math.min(top, queries.size()))) {
+                if (System.currentTimeMillis() - start > timeout) {
+                    break;
+                }
+                try {
+                    PVStructure args = samples.get(q).toArguments();
+                    admission.record(DSQuery.parse(args), dsConnector.getData(args));
+                } catch (Exception e) {
+                    failed++;
+                }
+                executed++;
+            }
+            System.out.println("Warm up: executed " + executed + " of " + queries.size() + " logged queries ("
+                    + failed + " failed) in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        /**
+         * Queue the RPC request for execution by a worker thread
          */
         @Override
-        public PVStructure request(PVStructure args) throws RPCRequestException {
-            PVStructure query;
+        public void request(PVStructure args, RPCResponseCallback callback) {
+            DSQuery query;
+            try {
+                query = DSQuery.parse(unwrap(args));
+            } catch (IllegalArgumentException e) {
+                query = null;   // Left to the connector
+            }
+            Request r = new Request(args, query, admission, accessLog, callback);
+            submit(r, clientOf(args), Collections.singletonList(query), r);
+        }
+
+        /**
+         * Queue the parts of a batch request for execution by the worker threads
+         */
+        void requestBatch(PVStructure args, RPCResponseCallback callback) {
+            Batch b;
             try {
-                if (args.getStructure().getID().startsWith("epics:nt/NTURI:1.")) {
-                    query = args.getStructureField("query");
-                } else {
-                    query = args;
+                b = new Batch(unwrap(args), admission, callback);
+            } catch (IllegalArgumentException e) {
+                metrics.requests.incrementAndGet();
+                new Reply(admission, callback).fail(new RPCRequestException(Status.StatusType.ERROR, e.getMessage()));
+                return;
+            }
+            submit(b, clientOf(args), b.queries, b.getParts());
+        }
+
+        /**
+         * Admit a request, queue the tasks answering it, and start its deadline timer.
+         * If the request is not admitted or not all tasks can be queued, it is rejected.
+         */
+        private void submit(final Reply r, String client, List<DSQuery> queries, Task... tasks) {
+            metrics.requests.incrementAndGet();
+            try {
+                r.ticket = admission.admit(client, queries);
+            } catch (RPCRequestException e) {
+                metrics.rejected.incrementAndGet();
+                r.fail(e);
+                return;
+            }
+            r.tasks.set(tasks.length);
+            int queued = 0;
+            boolean reserved = queueSlots.tryAcquire(tasks.length);
+            try {
+                if (!reserved) {
+                    throw new RejectedExecutionException();
+                }
+                for (Runnable task : tasks) {
+                    workers.execute(task);
+                    queued++;
                 }
-                return dsConnector.getData(query);
+            } catch (RejectedExecutionException e) {
+                if (reserved) {
+                    queueSlots.release(tasks.length - queued);
+                }
+                r.tasksEnded(tasks.length - queued);
+                metrics.rejected.incrementAndGet();
+                RPCRequestException overloaded = new RPCRequestException(Status.StatusType.ERROR,
+                        "Service overloaded (" + workers.getActiveCount() + " requests active, "
+                        + workers.getQueue().size() + " queued), please retry later");
+                r.fail(overloaded);
+                return;
+            }
+            if (deadline > 0) {
+                r.timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (r.fail(new RPCRequestException(Status.StatusType.ERROR,
+                                "Request did not complete within " + deadline + " ms"))) {
+                            metrics.timeouts.incrementAndGet();
+                        }
+                    }
+                }, deadline, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Returns the argument structure of a request (the query field of an NTURI)
+         */
+        private static PVStructure unwrap(PVStructure args) {
+            if (args.getStructure().getID().startsWith("epics:nt/NTURI:1.")) {
+                return args.getStructureField("query");
+            }
+            return args;
+        }
+
+        /**
+         * Returns the client identity of a request (its client argument), or null
+         */
+        private static String clientOf(PVStructure args) {
+            PVString pvClient = unwrap(args).getStringField("client");
+            return pvClient != null && pvClient.get().length() > 0 ? pvClient.get() : null;
+        }
+
+        /**
+         * Execute the RPC request using the directory service connector
+         */
+        private static PVStructure execute(PVStructure args) throws RPCRequestException {
+            try {
+                return dsConnector.getData(unwrap(args));
             } catch (Exception e) {
                 throw new RPCRequestException(Status.StatusType.FATAL, e.getMessage());
             }
         }
+
+        /**
+         * Reply is the answer to an RPC request. It is sent exactly once:
+         * either when the request has been executed, or by the deadline timer.
+         * The admission ticket of the request is released when all its tasks
+         * have ended, which may be after the reply has been sent.
+         */
+        private static class Reply {
+
+            private final RPCResponseCallback callback;
+            final Admission admission;
+            private final AtomicBoolean answered = new AtomicBoolean(false);
+            private volatile Future<?> timeout = null;
+            volatile Admission.Ticket ticket = null;
+            final AtomicInteger tasks = new AtomicInteger();
+            final long arrival = System.nanoTime();
+
+            Reply(Admission admission, RPCResponseCallback callback) {
+                this.admission = admission;
+                this.callback = callback;
+            }
+
+            /* Position in the worker queue: as assigned by the admission control */
+            long getOrder() {
+                Admission.Ticket t = ticket;
+                return t != null ? t.getOrder() : arrival;
+            }
+
+            boolean isAnswered() {
+                return answered.get();
+            }
+
+            /* Answers with an error status; returns false if the request was answered already */
+            boolean fail(RPCRequestException e) {
+                if (done(statusCreate.createStatus(e.getStatus(), e.getMessage(), null), null)) {
+                    metrics.errors.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+
+            boolean done(Status status, PVStructure result) {
+                if (answered.compareAndSet(false, true)) {
+                    Future<?> t = timeout;
+                    if (t != null) {
+                        t.cancel(false);
+                    }
+                    long start = System.nanoTime();
+                    callback.requestDone(status, result);
+                    metrics.reply.record(DSMetrics.micros(start));
+                    long total = DSMetrics.micros(arrival);
+                    metrics.total.record(total);
+                    answered(status, result, total);
+                    return true;
+                }
+                return false;
+            }
+
+            /* Called when tasks of the request have ended, or will never run */
+            void tasksEnded(int n) {
+                if (tasks.addAndGet(-n) == 0 && ticket != null) {
+                    admission.release(ticket);
+                }
+            }
+
+            /* Called once the reply has been sent */
+            void answered(Status status, PVStructure result, long micros) {
+            }
+        }
+
+        /**
+         * Task is a unit of work in the worker queue, answering (a part of) a request.
+         */
+        private interface Task extends Runnable {
+            Reply getReply();
+        }
+
+        /**
+         * Request is a queued RPC request for a single query.
+         */
+        private static class Request extends Reply implements Task {
+
+            private final PVStructure args;
+            private final DSQuery query;
+            private final AccessLog accessLog;
+            private final long arrivalTime = System.currentTimeMillis();
+
+            Request(PVStructure args, DSQuery query, Admission admission, AccessLog accessLog,
+                    RPCResponseCallback callback) {
+                super(admission, callback);
+                this.args = args;
+                this.query = query;
+                this.accessLog = accessLog;
+            }
+
+            @Override
+            void answered(Status status, PVStructure result, long micros) {
+                if (accessLog != null) {
+                    byte outcome = status.isOK() ? AccessLog.OK
+                            : status.getType() == Status.StatusType.WARNING ? AccessLog.WARNING : AccessLog.ERROR;
+                    String client = clientOf(args);
+                    accessLog.log(new AccessLog.Entry(arrivalTime, client != null ? client : "",
+                            AccessLog.normalize(unwrap(args)), (int) Math.min(micros, Integer.MAX_VALUE),
+                            Admission.rowCount(result), outcome));
+                }
+            }
+
+            @Override
+            public Reply getReply() {
+                return this;
+            }
+
+            @Override
+            public void run() {
+                if (isAnswered()) {
+                    return;     // Deadline expired while queued
+                }
+                metrics.queue.record(DSMetrics.micros(arrival));
+                try {
+                    PVStructure result = execute(args);
+                    admission.record(query, result);
+                    String partial = ChannelTable.getPartialMessage(result);
+                    done(partial == null ? okStatus
+                            : statusCreate.createStatus(Status.StatusType.WARNING, partial, null), result);
+                } catch (RPCRequestException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Batch is a batch RPC request: a structure of query structures,
+         * each one holding the same arguments as a single request, and optionally
+         * a client string field, the identity of the client (see clientOf).
+         *
+         * Identical queries are executed once. The distinct queries are executed
+         * concurrently by the worker threads; the last one to finish assembles
+         * the reply, a structure with the NTTable result of each query under
+         * the field name of the query. If any query fails, the batch fails.
+         * If any result is partial, the reply has a warning status naming those queries.
+         */
+        private static class Batch extends Reply {
+
+            private final String[] names;
+            private final int[] resultIndex;
+            final List<DSQuery> queries = new ArrayList<DSQuery>();
+            private final List<PVStructure> queryArgs = new ArrayList<PVStructure>();
+            private final AtomicReferenceArray<PVStructure> results;
+            private final AtomicInteger remaining;
+
+            Batch(PVStructure args, Admission admission, RPCResponseCallback callback) {
+                super(admission, callback);
+                List<PVField> fields = new ArrayList<PVField>();
+                for (PVField pvField : args.getPVFields()) {
+                    if (!(pvField instanceof PVString && pvField.getFieldName().equals("client"))) {
+                        fields.add(pvField);
+                    }
+                }
+                PVField[] specs = fields.toArray(new PVField[fields.size()]);
+                if (specs.length == 0) {
+                    throw new IllegalArgumentException("No queries in batch request");
+                }
+                names = new String[specs.length];
+                resultIndex = new int[specs.length];
+                Map<DSQuery, Integer> distinct = new HashMap<DSQuery, Integer>();
+                for (int i = 0; i < specs.length; i++) {
+                    names[i] = specs[i].getFieldName();
+                    if (!(specs[i] instanceof PVStructure)) {
+                        throw new IllegalArgumentException("Batch argument " + names[i]
+                                + " is not a query structure");
+                    }
+                    DSQuery q;
+                    try {
+                        q = DSQuery.parse((PVStructure) specs[i]);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(names[i] + ": " + e.getMessage());
+                    }
+                    Integer ix = distinct.get(q);
+                    if (ix == null) {
+                        ix = queries.size();
+                        distinct.put(q, ix);
+                        queries.add(q);
+                        queryArgs.add((PVStructure) specs[i]);
+                    }
+                    resultIndex[i] = ix;
+                }
+                results = new AtomicReferenceArray<PVStructure>(queries.size());
+                remaining = new AtomicInteger(queries.size());
+            }
+
+            Task[] getParts() {
+                Task[] parts = new Task[queries.size()];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = new Part(i);
+                }
+                return parts;
+            }
+
+            private class Part implements Task {
+                private final int ix;
+
+                Part(int ix) {
+                    this.ix = ix;
+                }
+
+                @Override
+                public Reply getReply() {
+                    return Batch.this;
+                }
+
+                @Override
+                public void run() {
+                    if (isAnswered()) {
+                        return;     // Deadline expired or another part failed
+                    }
+                    metrics.queue.record(DSMetrics.micros(arrival));
+                    try {
+                        results.set(ix, dsConnector.getData(queryArgs.get(ix)));
+                        admission.record(queries.get(ix), results.get(ix));
+                    } catch (Exception e) {
+                        fail(new RPCRequestException(Status.StatusType.FATAL,
+                                names[indexOf(ix)] + ": " + e.getMessage()));
+                        return;
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        String partial = getPartialMessage();
+                        done(partial == null ? okStatus
+                                : statusCreate.createStatus(Status.StatusType.WARNING, partial, null), compose());
+                    }
+                }
+            }
+
+            private int indexOf(int result) {
+                for (int i = 0; i < resultIndex.length; i++) {
+                    if (resultIndex[i] == result) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            /* Returns a message naming the queries with partial results, or null if all are complete */
+            private String getPartialMessage() {
+                StringBuilder sb = null;
+                for (int i = 0; i < names.length; i++) {
+                    String partial = ChannelTable.getPartialMessage(results.get(resultIndex[i]));
+                    if (partial != null) {
+                        sb = sb == null ? new StringBuilder() : sb.append("; ");
+                        sb.append(names[i]).append(": ").append(partial);
+                    }
+                }
+                return sb != null ? sb.toString() : null;
+            }
+
+            /* Copies the results into the reply structure (cached results must not be modified) */
+            private PVStructure compose() {
+                Field[] fields = new Field[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    fields[i] = results.get(resultIndex[i]).getStructure();
+                }
+                PVStructure pvTop = pvDataCreate.createPVStructure(fieldCreate.createStructure(names, fields));
+                for (int i = 0; i < names.length; i++) {
+                    convert.copyStructure(results.get(resultIndex[i]), pvTop.getStructureField(names[i]));
+                }
+                return pvTop;
+            }
+        }
     }
-    
+
+    /**
+     * BatchServiceImpl executes batch requests using the worker threads of the ds service.
+     */
+    private static class BatchServiceImpl implements RPCServiceAsync {
+
+        private final DSServiceImpl service;
+
+        BatchServiceImpl(DSServiceImpl service) {
+            this.service = service;
+        }
+
+        @Override
+        public void request(PVStructure args, RPCResponseCallback callback) {
+            service.requestBatch(args, callback);
+        }
+    }
+
+    /**
+     * StatsServiceImpl returns the statistics of the service.
+     */
+    private static class StatsServiceImpl implements RPCService {
+
+        @Override
+        public PVStructure request(PVStructure args) throws RPCRequestException {
+            return DSServiceImpl.metrics.toNTTable();
+        }
+    }
+
+    /**
+     * Creates the directory service connector selected by the system property
+     * ds.connector (see DSConnector).
+     *
+     * @return the connector (not started)
+     * @throws IllegalArgumentException if the connector cannot be created
+     */
+    static DSConnector createConnector() {
+        String name = System.getProperty("ds.connector", "cf");
+        if (name.equals("cf")) {
+            return new CFConnector();
+        } else if (name.equals("file")) {
+            String file = System.getProperty("ds.connector.file");
+            if (file == null || file.length() == 0) {
+                throw new IllegalArgumentException("ds.connector=file requires the file name in ds.connector.file");
+            }
+            return new CFConnector(new FileChannelSource(new File(file)));
+        }
+        try {
+            return (DSConnector) Class.forName(name).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to create connector '" + name + "': " + e, e);
+        }
+    }
+
     /**
      * main runs the DSService.
-     * 
+     *
      * @param args unused command line arguments
      * @throws PVAException pvAccess exception
      */
@@ -80,7 +733,25 @@ public class DSService {
 
         RPCServer server = new RPCServer();
 
-        server.registerService(SERVICE_NAME, new DSServiceImpl());
+        final DSServiceImpl service = new DSServiceImpl(
+                Integer.getInteger("ds.workers", 8),
+                Integer.getInteger("ds.queueSize", 100),
+                Long.getLong("ds.deadline", 10000L));
+        service.start();
+        String warmUpLog = System.getProperty("ds.warmup.log", System.getProperty("ds.log.file"));
+        int warmUpTop = Integer.getInteger("ds.warmup.top", 0);
+        if (warmUpTop > 0 && warmUpLog != null && warmUpLog.length() > 0) {
+            service.warmUp(new File(warmUpLog), warmUpTop, Long.getLong("ds.warmup.timeout", 60000L));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                service.stop();
+            }
+        }, "ds-shutdown"));
+        server.registerService(SERVICE_NAME, service);
+        server.registerService(BATCH_SERVICE_NAME, new BatchServiceImpl(service));
+        server.registerService(STATS_SERVICE_NAME, new StatsServiceImpl());
 
         server.printInfo();
         server.run(0);
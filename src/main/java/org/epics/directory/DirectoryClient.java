@@ -0,0 +1,470 @@
+/**
+ * DirectoryClient is a client library for the directory service.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.epics.pvaccess.ClientFactory;
+import org.epics.pvaccess.client.rpc.RPCClient;
+import org.epics.pvaccess.client.rpc.RPCClientFactory;
+import org.epics.pvaccess.client.rpc.RPCClientRequester;
+import org.epics.pvaccess.server.rpc.RPCRequestException;
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.Field;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.MessageType;
+import org.epics.pvdata.pv.PVDataCreate;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.ScalarType;
+import org.epics.pvdata.pv.Status;
+import org.epics.pvdata.pv.Structure;
+
+/**
+ * DirectoryClient sends requests to the directory service, for Java applications
+ * that look up channels.
+ *
+ * A client keeps a fixed number of connections (pvAccess RPC clients) open for
+ * its whole life time. Requests are asynchronous: each connection carries one
+ * request at a time, further requests wait in a queue for the next free connection.
+ * The argument structure of a request is created from a template that is cached
+ * per set of argument names. Results are returned as DirectoryTable views of the
+ * received NTTable, without copying the data.
+ *
+ * <pre>
+ *     DirectoryClient client = new DirectoryClient("ds", 4, 5.0);
+ *     Map&lt;String, String&gt; args = new LinkedHashMap&lt;String, String&gt;();
+ *     args.put("query", "SR:C01*");
+ *     args.put("show", "devName");
+ *     DirectoryTable table = client.request(args);
+ *     ...
+ *     client.destroy();
+ * </pre>
+ *
+ * DirectoryClient is thread safe.
+ */
+public final class DirectoryClient {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final String CLIENT_NAME = "DirectoryService Client";
+    private static final long SWEEP_PERIOD = 50; // Timeout resolution (ms)
+
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final PVDataCreate pvDataCreate = PVDataFactory.getPVDataCreate();
+
+    /**
+     * Callback receives the outcome of an asynchronous request.
+     * It is called on a pvAccess thread and must not block.
+     */
+    public interface Callback {
+        /**
+         * @param table the result
+         */
+        void completed(DirectoryTable table);
+
+        /**
+         * @param error the reason why the request failed (error status, timeout, or client destroyed)
+         */
+        void failed(RPCRequestException error);
+    }
+
+    private final String serviceName;
+    private final long timeout;
+    private final Connection[] connections;
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+    private final ConcurrentHashMap<String, Structure> templates = new ConcurrentHashMap<String, Structure>();
+    private final ScheduledExecutorService sweeper;
+    private boolean destroyed = false;
+
+    /**
+     * Creates a client of the "ds" service with one connection
+     * and a request timeout of 5 seconds.
+     */
+    public DirectoryClient() {
+        this("ds", 1, 5.0);
+    }
+
+    /**
+     * Creates a client. Connecting happens in the background (see waitConnect).
+     *
+     * @param serviceName name of the directory service
+     * @param connections number of connections (maximum number of requests in progress)
+     * @param timeout time in seconds after which a request fails
+     */
+    public DirectoryClient(String serviceName, int connections, double timeout) {
+        if (connections <= 0 || timeout <= 0) {
+            throw new IllegalArgumentException("Connections and timeout must be positive");
+        }
+        this.serviceName = serviceName;
+        this.timeout = (long) (timeout * 1000);
+        ClientFactory.start();
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection();
+            this.connections[i].rpc = RPCClientFactory.create(serviceName, this.connections[i]);
+            idle.add(this.connections[i]);
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ds-client-timeout"));
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until all connections are established.
+     *
+     * @param timeout maximum time to wait in seconds
+     * @return true if all connections are established
+     */
+    public boolean waitConnect(double timeout) {
+        long end = System.nanoTime() + (long) (timeout * 1e9);
+        for (Connection c : connections) {
+            double left = (end - System.nanoTime()) / 1e9;
+            if (left <= 0 || !c.rpc.waitConnect(left)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a request and waits for its result.
+     *
+     * @param arguments the request arguments (query, show, sort, ...), in a stable order
+     * @return the result
+     * @throws RPCRequestException if the service returned an error, or the request timed out
+     */
+    public DirectoryTable request(Map<String, String> arguments) throws RPCRequestException {
+        Request r = submit(arguments, null);
+        try {
+            r.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            r.cancel(false);
+            throw new RPCRequestException(Status.StatusType.ERROR, "Interrupted while waiting for "
+                    + serviceName);
+        }
+        if (r.error != null) {
+            throw r.error;
+        }
+        return r.table;
+    }
+
+    /**
+     * Sends a request without waiting for its result.
+     *
+     * @param arguments the request arguments (query, show, sort, ...), in a stable order
+     * @return the future result; get() throws an ExecutionException
+     *         with an RPCRequestException as cause when the request failed
+     */
+    public Future<DirectoryTable> send(Map<String, String> arguments) {
+        return submit(arguments, null);
+    }
+
+    /**
+     * Sends a request without waiting for its result.
+     *
+     * @param arguments the request arguments (query, show, sort, ...), in a stable order
+     * @param callback called when the request has completed (may be null)
+     * @return the future result; get() throws an ExecutionException
+     *         with an RPCRequestException as cause when the request failed
+     */
+    public Future<DirectoryTable> send(Map<String, String> arguments, Callback callback) {
+        return submit(arguments, callback);
+    }
+
+    private Request submit(Map<String, String> arguments, Callback callback) {
+        Request r = new Request(createArguments(arguments), callback,
+                System.currentTimeMillis() + timeout);
+        Connection c;
+        synchronized (this) {
+            if (destroyed) {
+                c = null;
+            } else {
+                c = idle.poll();
+                if (c == null) {
+                    queue.add(r);
+                    return r;
+                }
+                c.current = r;
+            }
+        }
+        if (c == null) {
+            r.fail(new RPCRequestException(Status.StatusType.ERROR, "Client has been destroyed"));
+        } else {
+            _dbg("Sending request");
+            c.rpc.sendRequest(r.pvArguments);
+        }
+        return r;
+    }
+
+    /**
+     * Fails all outstanding requests and closes the connections.
+     */
+    public void destroy() {
+        List<Request> failed = new ArrayList<Request>();
+        synchronized (this) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            failed.addAll(queue);
+            queue.clear();
+            for (Connection c : connections) {
+                if (c.current != null) {
+                    failed.add(c.current);
+                    c.current = null;
+                }
+            }
+        }
+        for (Request r : failed) {
+            r.fail(new RPCRequestException(Status.StatusType.ERROR, "Client has been destroyed"));
+        }
+        sweeper.shutdownNow();
+        for (Connection c : connections) {
+            c.rpc.destroy();
+        }
+    }
+
+    /*
+     * Creates the argument structure from the template for the argument names.
+     */
+    private PVStructure createArguments(Map<String, String> arguments) {
+        StringBuilder key = new StringBuilder();
+        for (String name : arguments.keySet()) {
+            key.append(name).append(',');
+        }
+        Structure structure = templates.get(key.toString());
+        if (structure == null) {
+            String[] names = arguments.keySet().toArray(new String[arguments.size()]);
+            Field[] fields = new Field[names.length];
+            for (int i = 0; i < names.length; i++) {
+                fields[i] = fieldCreate.createScalar(ScalarType.pvString);
+            }
+            structure = fieldCreate.createStructure(names, fields);
+            templates.putIfAbsent(key.toString(), structure);
+        }
+        PVStructure pvArguments = pvDataCreate.createPVStructure(structure);
+        for (Map.Entry<String, String> e : arguments.entrySet()) {
+            pvArguments.getStringField(e.getKey()).put(e.getValue());
+        }
+        return pvArguments;
+    }
+
+    /*
+     * Called when a connection has finished its request:
+     * hands it the next queued request, or marks it idle.
+     */
+    private void next(Connection c) {
+        Request r;
+        synchronized (this) {
+            if (destroyed) {
+                return;
+            }
+            do {
+                r = queue.poll();
+            } while (r != null && r.isDone());
+            c.current = r;
+            if (r == null) {
+                idle.add(c);
+                return;
+            }
+        }
+        c.rpc.sendRequest(r.pvArguments);
+    }
+
+    /*
+     * Fails the requests that have exceeded their timeout. A connection whose request
+     * timed out stays busy until the (late) response arrives.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        List<Request> expired = new ArrayList<Request>();
+        synchronized (this) {
+            for (Iterator<Request> it = queue.iterator(); it.hasNext();) {
+                Request r = it.next();
+                if (r.deadline - now <= 0 || r.isDone()) {
+                    it.remove();
+                    expired.add(r);
+                }
+            }
+            for (Connection c : connections) {
+                if (c.current != null && c.current.deadline - now <= 0 && !c.current.isDone()) {
+                    expired.add(c.current);
+                }
+            }
+        }
+        for (Request r : expired) {
+            r.fail(new RPCRequestException(Status.StatusType.ERROR, serviceName
+                    + " did not answer within " + timeout + " ms"));
+        }
+    }
+
+    /*
+     * Request is the future result of a request.
+     */
+    private static final class Request implements Future<DirectoryTable> {
+        private final PVStructure pvArguments;
+        private final Callback callback;
+        private final long deadline;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile DirectoryTable table;
+        private volatile RPCRequestException error;
+        private volatile boolean cancelled = false;
+
+        Request(PVStructure pvArguments, Callback callback, long deadline) {
+            this.pvArguments = pvArguments;
+            this.callback = callback;
+            this.deadline = deadline;
+        }
+
+        private synchronized boolean complete(DirectoryTable table, RPCRequestException error) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            this.table = table;
+            this.error = error;
+            done.countDown();
+            return true;
+        }
+
+        void succeed(DirectoryTable table) {
+            if (complete(table, null) && callback != null) {
+                callback.completed(table);
+            }
+        }
+
+        void fail(RPCRequestException error) {
+            if (complete(null, error) && callback != null) {
+                callback.failed(error);
+            }
+        }
+
+        /**
+         * Cancels the request: it fails, and its result is discarded when it arrives.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            cancelled = true;
+            fail(new RPCRequestException(Status.StatusType.ERROR, "Request cancelled"));
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public DirectoryTable get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public DirectoryTable get(long time, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(time, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private DirectoryTable result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error.getMessage(), error);
+            }
+            return table;
+        }
+    }
+
+    /*
+     * Connection is one RPC client with the request it is carrying.
+     */
+    private final class Connection implements RPCClientRequester {
+        RPCClient rpc;
+        Request current;    // guarded by DirectoryClient.this
+
+        @Override
+        public void connectResult(RPCClient client, Status status) {
+            _dbg("Connection to " + serviceName + ": " + status);
+        }
+
+        @Override
+        public void requestResult(RPCClient client, Status status, PVStructure pvResult) {
+            Request r;
+            synchronized (DirectoryClient.this) {
+                r = current;
+            }
+            next(this);
+            if (r == null) {
+                return;
+            }
+            if (!status.isSuccess()) {
+                r.fail(new RPCRequestException(status.getType(), status.getMessage()));
+            } else if (pvResult == null) {
+                r.fail(new RPCRequestException(Status.StatusType.ERROR, serviceName + " returned no data"));
+            } else {
+                try {
+                    r.succeed(new DirectoryTable(pvResult,
+                            status.getType() == Status.StatusType.WARNING ? status.getMessage() : null));
+                } catch (IllegalArgumentException e) {
+                    r.fail(new RPCRequestException(Status.StatusType.ERROR, "Unexpected data from "
+                            + serviceName + ": " + e.getMessage()));
+                }
+            }
+        }
+
+        @Override
+        public String getRequesterName() {
+            return CLIENT_NAME;
+        }
+
+        @Override
+        public void message(String message, MessageType messageType) {
+            System.out.printf("Message from %s %s: %s", serviceName, messageType.toString(), message);
+        }
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + DirectoryClient.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * DirectorySnapshot reads and writes the binary snapshot file of the channel directory.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * DirectorySnapshot is a copy of the channel directory stored in a local file,
+ * so that a restarted service can answer queries before (or without)
+ * contacting ChannelFinder.
+ *
+ * File format (all numbers big endian):
+ * <pre>
+ *     header (32 bytes):
+ *         int     magic "DSNP"
+ *         int     format version
+ *         long    creation time (milliseconds since the epoch)
+ *         long    length of the body in bytes
+ *         int     CRC32 checksum of the body, followed by the other header fields
+ *         int     reserved (0)
+ *     body:
+ *         int     number of strings S, followed by S strings (int length, UTF-8 bytes)
+ *         int     number of channels N
+ *         int[N]  channel names, int[N] owners (string indices, -1 for none)
+ *         int[N]  number of properties per channel
+ *         int     number of properties P, int[P] property names, int[P] property values
+ *         int[N]  number of tags per channel
+ *         int     number of tags T, int[T] tag names
+ * </pre>
+ *
+ * The checksum also covers the header, so that a damaged creation time cannot
+ * make a stale snapshot look recent (or a recent one stale).
+ *
+ * Every string (channel names, owners, property names and values, tag names)
+ * is stored once in the dictionary, and the loaded channels share a single
+ * String instance for each distinct string.
+ * The file is read through a memory mapping, and written to a temporary file
+ * that replaces the previous snapshot when complete.
+ */
+final class DirectorySnapshot {
+
+    static final int MAGIC = 0x44534E50;    // "DSNP"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int CHECKSUM_OFFSET = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long created;
+    private final List<Channel> channels;
+
+    private DirectorySnapshot(long created, List<Channel> channels) {
+        this.created = created;
+        this.channels = channels;
+    }
+
+    /**
+     * @return time the snapshot was written (in milliseconds since the epoch)
+     */
+    long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the channels of the snapshot
+     */
+    List<Channel> getChannels() {
+        return channels;
+    }
+
+    /**
+     * Writes a snapshot file.
+     *
+     * @param file the snapshot file
+     * @param channels the channels to store
+     * @throws IOException if the file cannot be written
+     */
+    static void write(File file, Collection<Channel> channels) throws IOException {
+        write(file, channels, System.currentTimeMillis());
+    }
+
+    /**
+     * Writes a snapshot file with a given creation time.
+     *
+     * @param file the snapshot file
+     * @param channels the channels to store
+     * @param created creation time to record (in milliseconds since the epoch)
+     * @throws IOException if the file cannot be written
+     */
+    static void write(File file, Collection<Channel> channels, long created) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        int n = channels.size();
+        int[] names = new int[n];
+        int[] owners = new int[n];
+        int[] propCounts = new int[n];
+        int[] tagCounts = new int[n];
+        ChannelIndex.IntList propNames = new ChannelIndex.IntList(n);
+        ChannelIndex.IntList propValues = new ChannelIndex.IntList(n);
+        ChannelIndex.IntList tagNames = new ChannelIndex.IntList(n);
+        int i = 0;
+        for (Channel c : channels) {
+            names[i] = intern(c.getName(), dictionary, strings);
+            owners[i] = intern(c.getOwner(), dictionary, strings);
+            for (Property p : c.getProperties()) {
+                propNames.add(intern(p.getName(), dictionary, strings));
+                propValues.add(intern(p.getValue(), dictionary, strings));
+                propCounts[i]++;
+            }
+            for (Tag t : c.getTags()) {
+                tagNames.add(intern(t.getName(), dictionary, strings));
+                tagCounts[i]++;
+            }
+            i++;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(new byte[HEADER_SIZE]);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(fos, crc), 1 << 16));
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                byte[] b = s.getBytes(UTF8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            out.writeInt(n);
+            writeInts(out, names, n);
+            writeInts(out, owners, n);
+            writeInts(out, propCounts, n);
+            out.writeInt(propNames.size());
+            writeInts(out, propNames);
+            writeInts(out, propValues);
+            writeInts(out, tagCounts, n);
+            out.writeInt(tagNames.size());
+            writeInts(out, tagNames);
+            out.flush();
+            long bodyLength = fos.getChannel().position() - HEADER_SIZE;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(created).putLong(bodyLength)
+                    .putInt(0).putInt(0);
+            updateChecksum(crc, header.array());
+            header.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+            header.flip();
+            fos.getChannel().write(header, 0);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            /* Windows cannot rename onto an existing file */
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot file.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read, has an unsupported version,
+     *         or is corrupt (wrong length or checksum, inconsistent content)
+     */
+    static DirectorySnapshot read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel fc = in.getChannel();
+            long size = fc.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Corrupt snapshot " + file + ": file too short");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " too large");
+            }
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt() != MAGIC) {
+                throw new IOException(file + " is not a directory snapshot");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            long created = buf.getLong();
+            long bodyLength = buf.getLong();
+            int checksum = buf.getInt();
+            buf.getInt();
+            if (bodyLength != size - HEADER_SIZE) {
+                throw new IOException("Corrupt snapshot " + file + ": expected " + bodyLength
+                        + " bytes of data, found " + (size - HEADER_SIZE));
+            }
+            if (checksum != checksum(buf)) {
+                throw new IOException("Corrupt snapshot " + file + ": checksum mismatch");
+            }
+            try {
+                return new DirectorySnapshot(created, readBody(buf));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt snapshot " + file + ": truncated data");
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt snapshot " + file + ": invalid string reference");
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt snapshot " + file + ": " + e.getMessage());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<Channel> readBody(ByteBuffer buf) {
+        int nStrings = count(buf);
+        String[] strings = new String[nStrings];
+        byte[] b = new byte[256];
+        for (int i = 0; i < nStrings; i++) {
+            int len = count(buf);
+            if (len > b.length) {
+                b = new byte[Math.max(len, 2 * b.length)];
+            }
+            buf.get(b, 0, len);
+            strings[i] = new String(b, 0, len, UTF8);
+        }
+
+        int n = count(buf);
+        int[] names = readInts(buf, n);
+        int[] owners = readInts(buf, n);
+        int[] propCounts = readInts(buf, n);
+        int nProps = count(buf);
+        int[] propNames = readInts(buf, nProps);
+        int[] propValues = readInts(buf, nProps);
+        int[] tagCounts = readInts(buf, n);
+        int nTags = count(buf);
+        int[] tagNames = readInts(buf, nTags);
+
+        List<Channel> channels = new ArrayList<Channel>(n);
+        int p = 0;
+        int t = 0;
+        for (int i = 0; i < n; i++) {
+            Channel.Builder c = Channel.Builder.channel(strings[names[i]]).owner(string(strings, owners[i]));
+            for (int k = 0; k < propCounts[i]; k++, p++) {
+                c.with(Property.Builder.property(strings[propNames[p]], string(strings, propValues[p])));
+            }
+            for (int k = 0; k < tagCounts[i]; k++, t++) {
+                c.with(Tag.Builder.tag(strings[tagNames[t]]));
+            }
+            channels.add(c.build());
+        }
+        if (p != nProps || t != nTags) {
+            throw new IllegalArgumentException("inconsistent property or tag counts");
+        }
+        return Collections.unmodifiableList(channels);
+    }
+
+    /* Computes the checksum of a snapshot file in a buffer */
+    private static int checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buf.duplicate();
+        body.position(HEADER_SIZE);
+        byte[] chunk = new byte[1 << 16];
+        while (body.hasRemaining()) {
+            int len = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, len);
+            crc.update(chunk, 0, len);
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer head = buf.duplicate();
+        head.position(0);
+        head.get(header);
+        updateChecksum(crc, header);
+        return (int) crc.getValue();
+    }
+
+    /* Adds the header fields, except the checksum itself, to the checksum of the body */
+    private static void updateChecksum(CRC32 crc, byte[] header) {
+        crc.update(header, 0, CHECKSUM_OFFSET);
+        crc.update(header, CHECKSUM_OFFSET + 4, HEADER_SIZE - CHECKSUM_OFFSET - 4);
+    }
+
+    private static int intern(String s, Map<String, Integer> dictionary, List<String> strings) {
+        if (s == null) {
+            return -1;
+        }
+        Integer ix = dictionary.get(s);
+        if (ix == null) {
+            ix = strings.size();
+            dictionary.put(s, ix);
+            strings.add(s);
+        }
+        return ix;
+    }
+
+    private static String string(String[] strings, int ix) {
+        return ix < 0 ? null : strings[ix];
+    }
+
+    private static int count(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0 || n > buf.remaining()) {
+            throw new IllegalArgumentException("invalid count " + n);
+        }
+        return n;
+    }
+
+    private static int[] readInts(ByteBuffer buf, int n) {
+        int[] a = new int[n];
+        buf.asIntBuffer().get(a);
+        buf.position(buf.position() + 4 * n);
+        return a;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            out.writeInt(a[i]);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, ChannelIndex.IntList l) throws IOException {
+        for (int i = 0; i < l.size(); i++) {
+            out.writeInt(l.get(i));
+        }
+    }
+}
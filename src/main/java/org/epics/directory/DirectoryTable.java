@@ -0,0 +1,471 @@
+/**
+ * DirectoryTable gives typed access to an NTTable returned by the directory service.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import org.epics.pvdata.pv.BooleanArrayData;
+import org.epics.pvdata.pv.ByteArrayData;
+import org.epics.pvdata.pv.DoubleArrayData;
+import org.epics.pvdata.pv.IntArrayData;
+import org.epics.pvdata.pv.LongArrayData;
+import org.epics.pvdata.pv.PVBooleanArray;
+import org.epics.pvdata.pv.PVDoubleArray;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVIntArray;
+import org.epics.pvdata.pv.PVLongArray;
+import org.epics.pvdata.pv.PVScalarArray;
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStringArray;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.PVUByteArray;
+import org.epics.pvdata.pv.PVUShortArray;
+import org.epics.pvdata.pv.ShortArrayData;
+import org.epics.pvdata.pv.StringArrayData;
+
+/**
+ * DirectoryTable is a read-only view of an NTTable result of the directory service.
+ *
+ * The columns are views of the arrays inside the returned PVStructure: no data is
+ * copied, and dictionary encoded columns (see the encoding argument) are decoded
+ * on access. Property and owner columns are StringColumns, tag columns are
+ * BooleanColumns. Property columns requested with a numeric type (see the types
+ * argument) are DoubleColumns or LongColumns.
+ *
+ * The underlying PVStructure must not be modified while the table is in use.
+ */
+public final class DirectoryTable {
+
+    private static final String DICTIONARY_FIELD = "dictionary";
+
+    private final PVStructure pvTable;
+    private final String message;
+    private final String[] labels;
+    private final Column[] columns;
+    private final int rows;
+
+    /**
+     * Creates a view of an NTTable.
+     *
+     * @param pvTable the NTTable structure
+     * @throws IllegalArgumentException if the structure is not an NTTable,
+     *         or has columns of unsupported types
+     */
+    public DirectoryTable(PVStructure pvTable) {
+        this(pvTable, null);
+    }
+
+    /**
+     * Creates a view of an NTTable.
+     *
+     * @param pvTable the NTTable structure
+     * @param message the message of a warning status returned with the table, or null
+     * @throws IllegalArgumentException if the structure is not an NTTable,
+     *         or has columns of unsupported types
+     */
+    public DirectoryTable(PVStructure pvTable, String message) {
+        if (!pvTable.getStructure().getID().startsWith("epics:nt/NTTable:1.")) {
+            throw new IllegalArgumentException("Expected epics:nt/NTTable:1.x, got "
+                    + pvTable.getStructure().getID());
+        }
+        PVStructure pvValue = pvTable.getStructureField("value");
+        PVStringArray pvLabels = (PVStringArray) pvTable.getSubField("labels");
+        if (pvValue == null || pvLabels == null) {
+            throw new IllegalArgumentException("NTTable does not have labels and value");
+        }
+        this.pvTable = pvTable;
+        this.message = message;
+
+        PVField[] pvColumns = pvValue.getPVFields();
+        StringArrayData labelData = new StringArrayData();
+        pvLabels.get(0, pvLabels.getLength(), labelData);
+        labels = new String[pvColumns.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i < pvLabels.getLength() ? labelData.data[labelData.offset + i]
+                    : pvColumns[i].getFieldName();
+        }
+
+        PVStructure pvDictionary = pvTable.getStructureField(DICTIONARY_FIELD);
+        columns = new Column[pvColumns.length];
+        for (int i = 0; i < columns.length; i++) {
+            PVStringArray pvWords = null;
+            if (pvDictionary != null) {
+                PVField pvField = pvDictionary.getSubField(pvColumns[i].getFieldName());
+                if (pvField instanceof PVStringArray) {
+                    pvWords = (PVStringArray) pvField;
+                }
+            }
+            columns[i] = createColumn(labels[i], pvColumns[i], pvWords);
+        }
+        rows = columns.length > 0 ? columns[0].size() : 0;
+    }
+
+    private static Column createColumn(String label, PVField pvColumn, PVStringArray pvWords) {
+        if (pvWords != null && pvColumn instanceof PVScalarArray) {
+            return new StringColumn(label, (PVScalarArray) pvColumn, pvWords);
+        } else if (pvColumn instanceof PVStringArray) {
+            return new StringColumn(label, (PVStringArray) pvColumn);
+        } else if (pvColumn instanceof PVBooleanArray) {
+            return new BooleanColumn(label, (PVBooleanArray) pvColumn);
+        } else if (pvColumn instanceof PVDoubleArray) {
+            return new DoubleColumn(label, (PVDoubleArray) pvColumn);
+        } else if (pvColumn instanceof PVLongArray) {
+            return new LongColumn(label, (PVLongArray) pvColumn);
+        }
+        throw new IllegalArgumentException("Column " + label + " has unsupported type "
+                + pvColumn.getField());
+    }
+
+    /**
+     * @return the NTTable structure
+     */
+    public PVStructure getPVStructure() {
+        return pvTable;
+    }
+
+    /**
+     * @return the message of a warning status returned with the table, or null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the descriptor of the table (the change token of a result with
+     *         a since argument), or null
+     */
+    public String getDescriptor() {
+        PVString pvDescriptor = pvTable.getStringField("descriptor");
+        return pvDescriptor != null ? pvDescriptor.get() : null;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @return number of columns
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @return the column labels
+     */
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    /**
+     * @param index the column index
+     * @return the column
+     */
+    public Column getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * @param label the column label (channel name, property or tag)
+     * @return the column, or null if there is no such column
+     */
+    public Column getColumn(String label) {
+        for (Column c : columns) {
+            if (c.getLabel().equals(label)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Column is a view of one column of the table.
+     */
+    public abstract static class Column {
+        private final String label;
+
+        Column(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the column label
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return number of rows
+         */
+        public abstract int size();
+
+        /**
+         * @param row the row index
+         * @return the value in the row, as a string
+         */
+        public abstract String getString(int row);
+
+        /**
+         * @return a copy of the column values, as strings
+         */
+        public String[] toStrings() {
+            String[] values = new String[size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = getString(i);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * StringColumn is a column of strings (channel names, owners, property values),
+     * either plain or dictionary encoded.
+     */
+    public static final class StringColumn extends Column {
+        private final int size;
+        private final String[] strings;
+        private final int offset;
+        private final String[] words;
+        private final byte[] byteIndex;
+        private final short[] shortIndex;
+        private final int[] intIndex;
+
+        StringColumn(String label, PVStringArray pvStrings) {
+            super(label);
+            size = pvStrings.getLength();
+            StringArrayData data = new StringArrayData();
+            pvStrings.get(0, size, data);
+            strings = data.data;
+            offset = data.offset;
+            words = null;
+            byteIndex = null;
+            shortIndex = null;
+            intIndex = null;
+        }
+
+        StringColumn(String label, PVScalarArray pvIndices, PVStringArray pvWords) {
+            super(label);
+            size = pvIndices.getLength();
+            StringArrayData wordData = new StringArrayData();
+            pvWords.get(0, pvWords.getLength(), wordData);
+            words = wordData.offset == 0 ? wordData.data : copy(wordData, pvWords.getLength());
+            strings = null;
+            if (pvIndices instanceof PVUByteArray) {
+                ByteArrayData data = new ByteArrayData();
+                ((PVUByteArray) pvIndices).get(0, size, data);
+                byteIndex = data.data;
+                offset = data.offset;
+                shortIndex = null;
+                intIndex = null;
+            } else if (pvIndices instanceof PVUShortArray) {
+                ShortArrayData data = new ShortArrayData();
+                ((PVUShortArray) pvIndices).get(0, size, data);
+                shortIndex = data.data;
+                offset = data.offset;
+                byteIndex = null;
+                intIndex = null;
+            } else if (pvIndices instanceof PVIntArray) {
+                IntArrayData data = new IntArrayData();
+                ((PVIntArray) pvIndices).get(0, size, data);
+                intIndex = data.data;
+                offset = data.offset;
+                byteIndex = null;
+                shortIndex = null;
+            } else {
+                throw new IllegalArgumentException("Dictionary encoded column " + label
+                        + " has unsupported type " + pvIndices.getField());
+            }
+        }
+
+        private static String[] copy(StringArrayData data, int n) {
+            String[] words = new String[n];
+            System.arraycopy(data.data, data.offset, words, 0, n);
+            return words;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String getString(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+            if (strings != null) {
+                return strings[offset + row];
+            } else if (byteIndex != null) {
+                return words[byteIndex[offset + row] & 0xFF];
+            } else if (shortIndex != null) {
+                return words[shortIndex[offset + row] & 0xFFFF];
+            }
+            return words[intIndex[offset + row]];
+        }
+
+        /**
+         * @return true if the column is dictionary encoded
+         */
+        public boolean isEncoded() {
+            return strings == null;
+        }
+    }
+
+    /**
+     * BooleanColumn is a column of booleans (tags).
+     */
+    public static final class BooleanColumn extends Column {
+        private final int size;
+        private final boolean[] values;
+        private final int offset;
+
+        BooleanColumn(String label, PVBooleanArray pvValues) {
+            super(label);
+            size = pvValues.getLength();
+            BooleanArrayData data = new BooleanArrayData();
+            pvValues.get(0, size, data);
+            values = data.data;
+            offset = data.offset;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param row the row index
+         * @return the value in the row
+         */
+        public boolean getBoolean(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+            return values[offset + row];
+        }
+
+        @Override
+        public String getString(int row) {
+            return Boolean.toString(getBoolean(row));
+        }
+
+        /**
+         * @return a copy of the column values
+         */
+        public boolean[] toBooleans() {
+            boolean[] copy = new boolean[size];
+            System.arraycopy(values, offset, copy, 0, size);
+            return copy;
+        }
+    }
+
+    /**
+     * DoubleColumn is a column of doubles (NaN for missing values).
+     */
+    public static final class DoubleColumn extends Column {
+        private final int size;
+        private final double[] values;
+        private final int offset;
+
+        DoubleColumn(String label, PVDoubleArray pvValues) {
+            super(label);
+            size = pvValues.getLength();
+            DoubleArrayData data = new DoubleArrayData();
+            pvValues.get(0, size, data);
+            values = data.data;
+            offset = data.offset;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param row the row index
+         * @return the value in the row
+         */
+        public double getDouble(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+            return values[offset + row];
+        }
+
+        @Override
+        public String getString(int row) {
+            return Double.toString(getDouble(row));
+        }
+
+        /**
+         * @return a copy of the column values
+         */
+        public double[] toDoubles() {
+            double[] copy = new double[size];
+            System.arraycopy(values, offset, copy, 0, size);
+            return copy;
+        }
+    }
+
+    /**
+     * LongColumn is a column of longs.
+     */
+    public static final class LongColumn extends Column {
+        private final int size;
+        private final long[] values;
+        private final int offset;
+
+        LongColumn(String label, PVLongArray pvValues) {
+            super(label);
+            size = pvValues.getLength();
+            LongArrayData data = new LongArrayData();
+            pvValues.get(0, size, data);
+            values = data.data;
+            offset = data.offset;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param row the row index
+         * @return the value in the row
+         */
+        public long getLong(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+            return values[offset + row];
+        }
+
+        @Override
+        public String getString(int row) {
+            return Long.toString(getLong(row));
+        }
+
+        /**
+         * @return a copy of the column values
+         */
+        public long[] toLongs() {
+            long[] copy = new long[size];
+            System.arraycopy(values, offset, copy, 0, size);
+            return copy;
+        }
+    }
+}
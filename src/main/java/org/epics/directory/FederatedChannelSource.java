@@ -0,0 +1,220 @@
+/**
+ * FederatedChannelSource queries several channel sources in parallel and merges their results.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * FederatedChannelSource serves a set of ChannelFinder instances (e.g. for the
+ * accelerator, the beamlines and the test stands) as one directory.
+ *
+ * A query is sent to all backends at the same time, so that its latency is bounded
+ * by the slowest backend, not by the sum of all. Each backend has its own timeout.
+ * The channels returned by the backends are merged in the configured order of the
+ * backends; a channel name that is returned by more than one backend is taken from
+ * the first one.
+ *
+ * If some backends fail or time out, the result is partial: it holds the channels
+ * of the other backends, and records which backends are missing (see Result).
+ * If all backends fail, the query fails.
+ */
+class FederatedChannelSource implements ChannelSource {
+
+    private static final boolean DEBUG = false; // Print debug info
+
+    private final List<String> names;
+    private final List<ChannelSource> backends;
+    private final long[] timeouts;
+    private final ExecutorService calls = Executors.newCachedThreadPool(new NamedThreadFactory("ds-federation"));
+
+    /**
+     * Result is the merged result of a query, which may be partial.
+     */
+    static final class Result extends ArrayList<Channel> {
+        private static final long serialVersionUID = 1L;
+        private final List<String> failures;
+
+        Result(int capacity, List<String> failures) {
+            super(capacity);
+            this.failures = failures;
+        }
+
+        /**
+         * @return true if some backends did not contribute to the result
+         */
+        boolean isPartial() {
+            return !failures.isEmpty();
+        }
+
+        /**
+         * @return the failed backends, as "name: reason"
+         */
+        List<String> getFailures() {
+            return failures;
+        }
+    }
+
+    /**
+     * @param names the names of the backends (used in messages)
+     * @param backends the backends, in order of precedence
+     * @param timeouts the timeout (in milliseconds) for each backend
+     */
+    FederatedChannelSource(List<String> names, List<ChannelSource> backends, long[] timeouts) {
+        if (names.size() != backends.size() || timeouts.length != backends.size()) {
+            throw new IllegalArgumentException("Every backend needs a name and a timeout");
+        }
+        this.names = new ArrayList<String>(names);
+        this.backends = new ArrayList<ChannelSource>(backends);
+        this.timeouts = timeouts.clone();
+    }
+
+    /**
+     * Creates a federation of ChannelFinder instances configured by the system properties
+     * ds.cf.backends (comma separated list of names), ds.cf.backend.&lt;name&gt;.url and
+     * ds.cf.backend.&lt;name&gt;.timeout.
+     *
+     * @param backendList comma separated list of backend names
+     * @param defaultTimeout timeout (in milliseconds) of backends without a configured timeout
+     * @return the federated source
+     * @throws IllegalArgumentException if a backend has no URL
+     */
+    static FederatedChannelSource create(String backendList, long defaultTimeout) {
+        List<String> names = new ArrayList<String>();
+        List<ChannelSource> backends = new ArrayList<ChannelSource>();
+        List<Long> timeouts = new ArrayList<Long>();
+        for (String name : backendList.split(",")) {
+            name = name.trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            String url = System.getProperty("ds.cf.backend." + name + ".url");
+            if (url == null || url.length() == 0) {
+                throw new IllegalArgumentException("No URL (ds.cf.backend." + name
+                        + ".url) for ChannelFinder backend " + name);
+            }
+            long timeout = Long.getLong("ds.cf.backend." + name + ".timeout", defaultTimeout);
+            names.add(name);
+            backends.add(new CFChannelSource(url, timeout));
+            timeouts.add(timeout);
+        }
+        long[] t = new long[timeouts.size()];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = timeouts.get(i);
+        }
+        return new FederatedChannelSource(names, backends, t);
+    }
+
+    /**
+     * @return number of backends
+     */
+    int size() {
+        return backends.size();
+    }
+
+    @Override
+    public Result find(final String query) {
+        int n = backends.size();
+        long start = System.currentTimeMillis();
+        List<Future<Collection<Channel>>> futures = new ArrayList<Future<Collection<Channel>>>(n);
+        for (final ChannelSource backend : backends) {
+            futures.add(calls.submit(new Callable<Collection<Channel>>() {
+                @Override
+                public Collection<Channel> call() {
+                    return backend.find(query);
+                }
+            }));
+        }
+
+        List<Collection<Channel>> results = new ArrayList<Collection<Channel>>(n);
+        List<String> failures = new ArrayList<String>();
+        int total = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                Future<Collection<Channel>> f = futures.get(i);
+                Collection<Channel> channels = null;
+                try {
+                    channels = f.get(Math.max(0, start + timeouts[i] - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    f.cancel(true);
+                    failures.add(names.get(i) + ": no answer within " + timeouts[i] + " ms");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IllegalArgumentException) {
+                        throw (IllegalArgumentException) cause;     // Invalid query
+                    }
+                    failures.add(names.get(i) + ": " + cause.getMessage());
+                }
+                results.add(channels);
+                if (channels != null) {
+                    total += channels.size();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for ChannelFinder backends");
+        } finally {
+            for (Future<Collection<Channel>> f : futures) {
+                f.cancel(true);
+            }
+        }
+        if (failures.size() == n) {
+            throw new IllegalStateException("All ChannelFinder backends failed (" + failures + ")");
+        }
+
+        Result merged = new Result(total, Collections.unmodifiableList(failures));
+        boolean merging = n - failures.size() > 1;
+        Set<String> seen = merging ? new HashSet<String>(total * 4 / 3 + 1) : null;
+        for (Collection<Channel> channels : results) {
+            if (channels == null) {
+                continue;
+            }
+            for (Channel c : channels) {
+                if (!merging || seen.add(c.getName())) {
+                    merged.add(c);
+                }
+            }
+        }
+        _dbg("Query '" + query + "': " + merged.size() + " channels from " + (n - failures.size())
+                + " of " + n + " backends in " + (System.currentTimeMillis() - start) + " ms"
+                + (merged.isPartial() ? ", missing " + failures : ""));
+        return merged;
+    }
+
+    @Override
+    public String toString() {
+        return "FederatedChannelSource: " + names;
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + FederatedChannelSource.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
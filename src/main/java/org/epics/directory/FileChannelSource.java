@@ -0,0 +1,190 @@
+/**
+ * FileChannelSource answers queries from a directory loaded from a file.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FileChannelSource keeps a static channel directory in memory and answers
+ * queries from it, using a ChannelIndex, without any remote service.
+ * It serves static channel lists (e.g. of IOCs) at memory speed, and allows
+ * running and load testing the service without a ChannelFinder instance.
+ *
+ * The file is either a snapshot written by a replicated directory
+ * (see DirectorySnapshot) or a text file with one channel per line:
+ * <pre>
+ *     # comment
+ *     channelName [@owner=owner] [property=value ...] [tag ...]
+ * </pre>
+ * Words are separated by white space (so names and values cannot contain white space).
+ *
+ * The file is loaded by load() or on the first query.
+ */
+class FileChannelSource implements ChannelSource {
+
+    private static final boolean DEBUG = false; // Print debug info
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String OWNER = "@owner=";
+
+    private final File file;
+    private volatile ChannelIndex index = null;
+
+    /**
+     * @param file the snapshot or text file holding the channels
+     */
+    FileChannelSource(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads and indexes the channels of the file (if not loaded already).
+     *
+     * @throws IllegalStateException if the file cannot be read or is malformed
+     */
+    synchronized void load() {
+        if (index != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<Channel> channels;
+        try {
+            if (isSnapshot(file)) {
+                channels = DirectorySnapshot.read(file).getChannels();
+            } else {
+                channels = readText(file);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load channel directory from " + file + ": "
+                    + e.getMessage(), e);
+        }
+        index = new ChannelIndex(Collections.unmodifiableList(channels));
+        _dbg("Loaded " + channels.size() + " channels from " + file + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @return true if the channels have been loaded
+     */
+    boolean isLoaded() {
+        return index != null;
+    }
+
+    /**
+     * @return number of loaded channels
+     */
+    int size() {
+        ChannelIndex i = index;
+        return i == null ? 0 : i.size();
+    }
+
+    @Override
+    public Collection<Channel> find(String query) {
+        ChannelIndex i = index;
+        if (i == null) {
+            load();
+            i = index;
+        }
+        return i.find(ChannelQuery.parse(query));
+    }
+
+    private static boolean isSnapshot(File file) throws IOException {
+        if (file.length() < 4) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == DirectorySnapshot.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a text file with one channel per line.
+     * Names and values that occur several times share one String instance.
+     */
+    static List<Channel> readText(File file) throws IOException {
+        List<Channel> channels = new ArrayList<Channel>();
+        Map<String, String> strings = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] words = line.split("\\s+");
+                Channel.Builder b = Channel.Builder.channel(words[0]);
+                for (int i = 1; i < words.length; i++) {
+                    String word = words[i];
+                    int eq = word.indexOf('=');
+                    if (word.startsWith(OWNER)) {
+                        b.owner(intern(strings, word.substring(OWNER.length())));
+                    } else if (eq > 0) {
+                        b.with(Property.Builder.property(intern(strings, word.substring(0, eq)),
+                                intern(strings, word.substring(eq + 1))));
+                    } else if (eq < 0) {
+                        b.with(Tag.Builder.tag(intern(strings, word)));
+                    } else {
+                        throw new IOException("Invalid word '" + word + "' in line " + lineNumber);
+                    }
+                }
+                channels.add(b.build());
+            }
+        } finally {
+            in.close();
+        }
+        return channels;
+    }
+
+    private static String intern(Map<String, String> strings, String s) {
+        String shared = strings.get(s);
+        if (shared == null) {
+            strings.put(s, s);
+            shared = s;
+        }
+        return shared;
+    }
+
+    @Override
+    public String toString() {
+        return "FileChannelSource: " + file + ", " + size() + " channels";
+    }
+
+    private static void _dbg(String debug_message) {
+        if (DEBUG) {
+            System.err.println("DEBUG (" + FileChannelSource.class.getSimpleName() + "): " + debug_message);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * ResultCache keeps recently returned NTTable results in memory.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.pvdata.pv.PVBooleanArray;
+import org.epics.pvdata.pv.PVDoubleArray;
+import org.epics.pvdata.pv.PVField;
+import org.epics.pvdata.pv.PVIntArray;
+import org.epics.pvdata.pv.PVLongArray;
+import org.epics.pvdata.pv.PVScalarArray;
+import org.epics.pvdata.pv.PVStringArray;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.PVUByteArray;
+import org.epics.pvdata.pv.PVUShortArray;
+import org.epics.pvdata.pv.ScalarArray;
+import org.epics.pvdata.pv.ScalarType;
+import org.epics.pvdata.pv.StringArrayData;
+
+/**
+ * ResultCache is a bounded LRU cache of finished NTTable results,
+ * keyed by the normalized request arguments.
+ *
+ * Entries expire after a fixed time to live. Expired entries are kept for
+ * a further stale time, during which getStale() still returns them: when the
+ * channel source fails, a stale result is better than none.
+ * The cache is bounded both by
+ * the number of entries and by the estimated memory size of the cached tables;
+ * when either limit is exceeded, the least recently used entries are evicted.
+ *
+ * Cached structures are shared between requests and must not be modified.
+ */
+class ResultCache {
+
+    private static class Entry {
+        final PVStructure table;
+        final long bytes;
+        final long expires;
+
+        Entry(PVStructure table, long bytes, long expires) {
+            this.table = table;
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttl;
+    private final long staleTtl;
+
+    private final LinkedHashMap<DSQuery, Entry> entries =
+            new LinkedHashMap<DSQuery, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+
+    /**
+     * Creates a result cache.
+     *
+     * @param maxEntries maximum number of cached results
+     * @param maxBytes maximum estimated size of all cached results in bytes
+     * @param ttl time to live of a cached result in milliseconds (0 disables the cache)
+     */
+    ResultCache(int maxEntries, long maxBytes, long ttl) {
+        this(maxEntries, maxBytes, ttl, 0);
+    }
+
+    /**
+     * Creates a result cache that keeps expired results for a while.
+     *
+     * @param maxEntries maximum number of cached results
+     * @param maxBytes maximum estimated size of all cached results in bytes
+     * @param ttl time to live of a cached result in milliseconds (0 disables the cache)
+     * @param staleTtl time in milliseconds an expired result is kept for getStale()
+     */
+    ResultCache(int maxEntries, long maxBytes, long ttl, long staleTtl) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.staleTtl = staleTtl;
+    }
+
+    /**
+     * @return true if the cache is configured to hold any entries
+     */
+    boolean isEnabled() {
+        return ttl > 0 && maxEntries > 0 && maxBytes > 0;
+    }
+
+    /**
+     * Looks up a cached result.
+     *
+     * @param query normalized request arguments
+     * @return the cached NTTable, or null if there is no valid entry
+     */
+    PVStructure get(DSQuery query) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry e = entries.get(query);
+            if (e != null) {
+                long now = System.currentTimeMillis();
+                if (e.expires - now > 0) {
+                    hits.incrementAndGet();
+                    return e.table;
+                }
+                if (e.expires + staleTtl - now <= 0) {
+                    entries.remove(query);
+                    bytes -= e.bytes;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Looks up a cached result that may have expired, but is still within
+     * the stale time.
+     *
+     * @param query normalized request arguments
+     * @return the cached NTTable, or null if there is no such entry
+     */
+    PVStructure getStale(DSQuery query) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry e = entries.get(query);
+            if (e == null) {
+                return null;
+            }
+            if (e.expires + staleTtl - System.currentTimeMillis() <= 0) {
+                entries.remove(query);
+                bytes -= e.bytes;
+                return null;
+            }
+            staleHits.incrementAndGet();
+            return e.table;
+        }
+    }
+
+    /**
+     * Adds a result to the cache, evicting the least recently used entries
+     * if the cache limits are exceeded.
+     *
+     * @param query normalized request arguments
+     * @param table NTTable result
+     */
+    void put(DSQuery query, PVStructure table) {
+        if (!isEnabled()) {
+            return;
+        }
+        long size = estimateSize(table);
+        if (size > maxBytes) {
+            return;
+        }
+        Entry e = new Entry(table, size, System.currentTimeMillis() + ttl);
+        synchronized (entries) {
+            Entry old = entries.put(query, e);
+            if (old != null) {
+                bytes -= old.bytes;
+            }
+            bytes += size;
+            Iterator<Map.Entry<DSQuery, Entry>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                bytes -= eldest.bytes;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Estimates the heap size of an NTTable result
+     * (including the dictionary of a dictionary encoded table).
+     * String instances shared by several rows of a column are counted once.
+     *
+     * @param table NTTable result
+     * @return estimated size in bytes
+     */
+    static long estimateSize(PVStructure table) {
+        return 256 + estimateColumns(table.getStructureField("value"))
+                + estimateColumns(table.getStructureField("dictionary"));
+    }
+
+    private static long estimateColumns(PVStructure pvColumns) {
+        long size = 0;
+        if (pvColumns == null) {
+            return size;
+        }
+        StringArrayData data = new StringArrayData();
+        for (PVField pvField : pvColumns.getPVFields()) {
+            if (pvField instanceof PVStringArray) {
+                PVStringArray pvArray = (PVStringArray) pvField;
+                int len = pvArray.getLength();
+                pvArray.get(0, len, data);
+                size += 16 + 8L * len;
+                Set<String> counted = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+                for (int i = 0; i < len; i++) {
+                    String s = data.data[data.offset + i];
+                    if (s != null && counted.add(s)) {
+                        size += 40 + 2L * s.length();
+                    }
+                }
+            } else if (pvField instanceof PVBooleanArray) {
+                size += 16 + ((PVBooleanArray) pvField).getLength();
+            } else if (pvField instanceof PVUByteArray) {
+                size += 16 + ((PVUByteArray) pvField).getLength();
+            } else if (pvField instanceof PVUShortArray) {
+                size += 16 + 2L * ((PVUShortArray) pvField).getLength();
+            } else if (pvField instanceof PVIntArray) {
+                size += 16 + 4L * ((PVIntArray) pvField).getLength();
+            } else if (pvField instanceof PVDoubleArray) {
+                size += 16 + 8L * ((PVDoubleArray) pvField).getLength();
+            } else if (pvField instanceof PVLongArray) {
+                size += 16 + 8L * ((PVLongArray) pvField).getLength();
+            } else if (pvField instanceof PVScalarArray) {
+                ScalarType type = ((ScalarArray) pvField.getField()).getElementType();
+                size += 16 + (long) elementSize(type) * ((PVScalarArray) pvField).getLength();
+            } else {
+                size += 64;
+            }
+        }
+        return size;
+    }
+
+    /* Size in bytes of an array element (a reference for strings) */
+    private static int elementSize(ScalarType type) {
+        switch (type) {
+            case pvBoolean:
+            case pvByte:
+            case pvUByte:
+                return 1;
+            case pvShort:
+            case pvUShort:
+                return 2;
+            case pvInt:
+            case pvUInt:
+            case pvFloat:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache: " + size() + " entries, " + getBytes() + " bytes, "
+                + getHits() + " hits, " + getMisses() + " misses, "
+                + getEvictions() + " evictions";
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * TableStructures caches the introspection structures of result tables.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.StandardFieldFactory;
+import org.epics.pvdata.pv.FieldBuilder;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.ScalarArray;
+import org.epics.pvdata.pv.ScalarType;
+import org.epics.pvdata.pv.Structure;
+
+/**
+ * TableStructures holds the NTTable introspection structures built by ChannelTable.
+ *
+ * The value fields of a result table are named c0, c1, ... in column order, and the
+ * column labels are data, not part of the introspection interface. A table structure
+ * is therefore completely determined by the sequence of column types and by the
+ * optional descriptor, alarm and dictionary fields. Most requests produce one of
+ * a small number of such layouts, so the immutable Structure for each layout is
+ * built once and shared by all tables that have it.
+ *
+ * The number of cached layouts is limited; tables with further layouts get
+ * a freshly built structure.
+ */
+final class TableStructures {
+
+    static final int MAX_STRUCTURES = 1024;
+    private static final int CACHED_NAMES = 256;
+
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final ScalarArray stringArray = fieldCreate.createScalarArray(ScalarType.pvString);
+    private static final String[] columnNames = new String[CACHED_NAMES];
+    private static final ConcurrentMap<String, Structure> structures = new ConcurrentHashMap<String, Structure>();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CACHED_NAMES; i++) {
+            columnNames[i] = "c" + i;
+        }
+    }
+
+    private TableStructures() {
+    }
+
+    /**
+     * @param column the column index
+     * @return the field name of the column in the value structure
+     */
+    static String columnName(int column) {
+        return column < CACHED_NAMES ? columnNames[column] : "c" + column;
+    }
+
+    /**
+     * Returns the structure of a result table.
+     *
+     * Columns of an index type (ubyte, ushort, int) are dictionary encoded:
+     * if the table has a dictionary, it contains a string array of the same
+     * field name for each of them, in column order.
+     *
+     * @param columns the types of the value columns, in order
+     * @param descriptor true if the table has a descriptor field
+     * @param alarm true if the table has an alarm field
+     * @param dictionary true if the table has a dictionary field
+     * @return the (shared) table structure
+     */
+    static Structure get(List<ScalarArray> columns, boolean descriptor, boolean alarm, boolean dictionary) {
+        StringBuilder signature = new StringBuilder(columns.size() + 4);
+        for (ScalarArray column : columns) {
+            signature.append(typeCode(column.getElementType()));
+        }
+        signature.append('/');
+        if (descriptor) {
+            signature.append('d');
+        }
+        if (alarm) {
+            signature.append('a');
+        }
+        if (dictionary) {
+            signature.append('x');
+        }
+        String key = signature.toString();
+
+        Structure structure = structures.get(key);
+        if (structure == null) {
+            misses.incrementAndGet();
+            structure = create(columns, descriptor, alarm, dictionary);
+            if (structures.size() < MAX_STRUCTURES) {
+                Structure previous = structures.putIfAbsent(key, structure);
+                if (previous != null) {
+                    structure = previous;
+                }
+            }
+        }
+        return structure;
+    }
+
+    private static Structure create(List<ScalarArray> columns, boolean descriptor, boolean alarm,
+            boolean dictionary) {
+        FieldBuilder topBuilder = fieldCreate.createFieldBuilder();
+        topBuilder.setId("epics:nt/NTTable:1.0");
+        topBuilder.addArray("labels", ScalarType.pvString);
+        FieldBuilder valueNestedBuilder = topBuilder.addNestedStructure("value");
+        for (int i = 0; i < columns.size(); i++) {
+            valueNestedBuilder.add(columnName(i), columns.get(i));
+        }
+        valueNestedBuilder.endNested();
+        if (descriptor) {
+            topBuilder.add("descriptor", ScalarType.pvString);
+        }
+        if (alarm) {
+            topBuilder.add("alarm", StandardFieldFactory.getStandardField().alarm());
+        }
+        if (dictionary) {
+            FieldBuilder dictionaryNestedBuilder = topBuilder.addNestedStructure("dictionary");
+            for (int i = 0; i < columns.size(); i++) {
+                if (isIndex(columns.get(i).getElementType())) {
+                    dictionaryNestedBuilder.add(columnName(i), stringArray);
+                }
+            }
+            dictionaryNestedBuilder.endNested();
+        }
+        return topBuilder.createStructure();
+    }
+
+    /**
+     * @param type element type of a column
+     * @return true if a column of this type holds dictionary indices
+     */
+    static boolean isIndex(ScalarType type) {
+        return type == ScalarType.pvUByte || type == ScalarType.pvUShort || type == ScalarType.pvInt;
+    }
+
+    private static char typeCode(ScalarType type) {
+        return (char) ('0' + type.ordinal());
+    }
+
+    /**
+     * @return number of cached structures
+     */
+    static int size() {
+        return structures.size();
+    }
+
+    /**
+     * @return number of structures that had to be built
+     */
+    static long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * ValueFilter selects channels by the values of their properties.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ValueFilter is the parsed filter argument of a request: a comma separated
+ * list of conditions on property values, all of which must be true.
+ *
+ * Conditions are
+ * <pre>
+ *     name=value     the value is equal to value
+ *     name^=prefix   the value starts with prefix
+ *     name&lt;x, name&lt;=x, name&gt;x, name&gt;=x
+ *                    the value is a number less than (...) x
+ * </pre>
+ * A channel that does not have the property of a condition, or whose value
+ * is not a number for a numeric condition, does not match.
+ *
+ * Unlike the query (which selects the channels in ChannelFinder, with wildcards
+ * and case insensitive matching), the filter is applied to the returned channels
+ * and compares values exactly.
+ */
+final class ValueFilter {
+
+    private enum Op {
+        EQUAL("="), PREFIX("^="), LESS("<"), LESS_EQUAL("<="), GREATER(">"), GREATER_EQUAL(">=");
+
+        private final String symbol;
+
+        Op(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    private static final class Condition {
+        final String property;
+        final Op op;
+        final String value;
+        final double number;
+
+        Condition(String property, Op op, String value, double number) {
+            this.property = property;
+            this.op = op;
+            this.value = value;
+            this.number = number;
+        }
+
+        boolean matches(String v) {
+            switch (op) {
+                case EQUAL:
+                    return v.equals(value);
+                case PREFIX:
+                    return v.startsWith(value);
+                default:
+                    double d;
+                    try {
+                        d = Double.parseDouble(v.trim());
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                    switch (op) {
+                        case LESS:
+                            return d < number;
+                        case LESS_EQUAL:
+                            return d <= number;
+                        case GREATER:
+                            return d > number;
+                        default:
+                            return d >= number;
+                    }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return property + op.symbol + value;
+        }
+    }
+
+    private final List<Condition> conditions;
+
+    private ValueFilter(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Parses a filter argument.
+     *
+     * @param filter comma separated list of conditions, e.g. "type=BPM,position&gt;=100"
+     * @return the parsed filter
+     * @throws IllegalArgumentException if a condition is malformed
+     */
+    static ValueFilter parse(String filter) {
+        List<Condition> conditions = new ArrayList<Condition>();
+        for (String s : filter.split(",")) {
+            if (s.trim().length() == 0) {
+                continue;
+            }
+            int pos = 0;
+            while (pos < s.length() && "=<>^".indexOf(s.charAt(pos)) < 0) {
+                pos++;
+            }
+            String property = s.substring(0, pos).trim();
+            Op op = null;
+            if (s.startsWith("^=", pos)) {
+                op = Op.PREFIX;
+            } else if (s.startsWith("<=", pos)) {
+                op = Op.LESS_EQUAL;
+            } else if (s.startsWith(">=", pos)) {
+                op = Op.GREATER_EQUAL;
+            } else if (s.startsWith("=", pos)) {
+                op = Op.EQUAL;
+            } else if (s.startsWith("<", pos)) {
+                op = Op.LESS;
+            } else if (s.startsWith(">", pos)) {
+                op = Op.GREATER;
+            }
+            if (op == null || property.length() == 0) {
+                throw new IllegalArgumentException("Invalid filter condition '" + s + "'");
+            }
+            String value = s.substring(pos + op.symbol.length()).trim();
+            double number = Double.NaN;
+            if (op != Op.EQUAL && op != Op.PREFIX) {
+                try {
+                    number = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number in filter condition '" + s + "'");
+                }
+            }
+            conditions.add(new Condition(property, op, value, number));
+        }
+        if (conditions.isEmpty()) {
+            throw new IllegalArgumentException("Empty filter argument '" + filter + "'");
+        }
+        return new ValueFilter(Collections.unmodifiableList(conditions));
+    }
+
+    /**
+     * Checks if a channel matches the filter.
+     *
+     * @param channel the channel to check
+     * @return true if the channel matches all conditions
+     */
+    boolean matches(Channel channel) {
+        for (Condition c : conditions) {
+            Property prop = channel.getProperty(c.property);
+            if (prop == null || prop.getValue() == null || !c.matches(prop.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Selects the channels that match the filter.
+     *
+     * @param channels the channels
+     * @return the matching channels, in their original order
+     */
+    Channel[] select(Channel[] channels) {
+        Channel[] selected = new Channel[channels.length];
+        int n = 0;
+        for (Channel chan : channels) {
+            if (matches(chan)) {
+                selected[n++] = chan;
+            }
+        }
+        return n == channels.length ? channels : Arrays.copyOf(selected, n);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Condition c : conditions) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
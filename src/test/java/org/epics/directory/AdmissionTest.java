@@ -0,0 +1,112 @@
+/**
+ * AdmissionTest checks the limits of the admission control.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.epics.pvaccess.server.rpc.RPCRequestException;
+import org.junit.Test;
+
+/**
+ * AdmissionTest checks the per-client limits, the treatment of anonymous
+ * requests and the limit on batch requests.
+ */
+public class AdmissionTest {
+
+    private static List<DSQuery> query(String query) {
+        return Collections.singletonList(DSQuery.parse(CFConnectorConcurrencyTest.args("query", query)));
+    }
+
+    /* Checks that a request is rejected with a message containing the given text */
+    private static void assertRejected(Admission admission, String client, String query, String message) {
+        try {
+            admission.admit(client, query(query));
+            fail("Request was admitted");
+        } catch (RPCRequestException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void testClientLimits() throws RPCRequestException {
+        Admission admission = new Admission(2, 0, 10000, 1, 2000);
+        Admission.Ticket t1 = admission.admit("panel", query("SR*"));
+        admission.admit("panel", query("SR*"));
+        assertRejected(admission, "panel", "SR*", "Client panel has 2 requests in progress");
+        /* Other clients are not affected */
+        admission.admit("script", query("SR*"));
+
+        admission.release(t1);
+        admission.admit("panel", query("SR*"));
+        assertEquals(1, admission.throttled.get());
+    }
+
+    @Test
+    public void testClientRate() throws RPCRequestException {
+        Admission admission = new Admission(0, 5.0, 10000, 1, 2000);
+        for (int i = 0; i < 5; i++) {
+            admission.release(admission.admit("panel", query("SR*")));
+        }
+        assertRejected(admission, "panel", "SR*", "Client panel exceeds 5.0 requests/s");
+        admission.admit("script", query("SR*"));
+    }
+
+    @Test
+    public void testAnonymousCallers() throws RPCRequestException {
+        Admission admission = new Admission(2, 5.0, 10000, 1, 2000);
+        /* A storm of anonymous requests, all still in progress ... */
+        List<Admission.Ticket> storm = new ArrayList<Admission.Ticket>();
+        for (int i = 0; i < 50; i++) {
+            storm.add(admission.admit(null, query("SR:C" + i + "*")));
+        }
+        /* ... does not keep another anonymous caller out */
+        for (int i = 0; i < 10; i++) {
+            admission.release(admission.admit(null, query("BR*")));
+        }
+        assertEquals(0, admission.throttled.get());
+        for (Admission.Ticket t : storm) {
+            admission.release(t);
+        }
+    }
+
+    @Test
+    public void testBatchLimit() throws RPCRequestException {
+        Admission admission = new Admission(0, 1.0, 10000, 1, 2000);
+        Admission.Ticket batch = admission.admit("script", query("*"));
+        assertEquals(Admission.BATCH, batch.getPriority());
+        assertEquals(1, admission.getBatchActive());
+
+        /* A second batch request is shed, also for anonymous requests ... */
+        assertRejected(admission, "dump", "*", "Too many expensive requests in progress (1)");
+        assertRejected(admission, null, "*", "Too many expensive requests in progress (1)");
+        assertEquals(2, admission.shed.get());
+        /* ... without using up the rate token of its client */
+        assertEquals(Admission.INTERACTIVE, admission.admit("dump", query("SR*")).getPriority());
+
+        /* Batch requests are queued behind interactive requests */
+        assertTrue(batch.getOrder() > admission.admit(null, query("SR*")).getOrder());
+
+        admission.release(batch);
+        admission.release(batch);
+        assertEquals(0, admission.getBatchActive());
+        admission.admit(null, query("*"));
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * CFChannelSourceTest checks the failure handling of ChannelFinder calls.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import gov.bnl.channelfinder.api.ChannelFinderClient;
+import gov.bnl.channelfinder.api.ChannelFinderClientImpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.epics.pvdata.pv.PVStructure;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * CFChannelSourceTest runs a CFChannelSource, with the ChannelFinderAPI client,
+ * against a local HTTP server standing in for ChannelFinder. The stub answers
+ * with an empty channel list, fails with HTTP status 500, or hangs until
+ * released, and the tests check the call timeout, the concurrency limit,
+ * the circuit breaker and the fallback to stale cached results.
+ */
+public class CFChannelSourceTest {
+
+    private static final int OK = 0;
+    private static final int FAIL = 1;
+    private static final int HANG = 2;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private ExecutorService clientThreads;
+    private ChannelFinderClient client;
+    private volatile int mode = OK;
+    private volatile CountDownLatch hanging = new CountDownLatch(1);
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    if (mode == HANG) {
+                        hanging.await(30, TimeUnit.SECONDS);
+                    }
+                    if (mode == FAIL) {
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    String accept = exchange.getRequestHeaders().getFirst("Accept");
+                    boolean xml = accept != null && accept.contains("xml") && !accept.contains("json");
+                    byte[] body = (xml ? "<channels/>" : "[]").getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", xml ? "application/xml" : "application/json");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+
+        clientThreads = Executors.newFixedThreadPool(4);
+        client = ChannelFinderClientImpl.CFCBuilder
+                .serviceURL("http://127.0.0.1:" + server.getAddress().getPort() + "/ChannelFinder")
+                .withExecutor(clientThreads)
+                .create();
+    }
+
+    @After
+    public void stopServer() {
+        hanging.countDown();
+        server.stop(0);
+        serverThreads.shutdownNow();
+        clientThreads.shutdownNow();
+    }
+
+    /* Waits until no call is in progress */
+    private static void awaitIdle(CFChannelSource source) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (source.getActive() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals("calls in progress", 0, source.getActive());
+    }
+
+    @Test
+    public void testFind() {
+        CFChannelSource source = new CFChannelSource(client, 2, 5000, new CircuitBreaker(3, 1000));
+        assertNotNull(source.find("SR*"));
+        assertEquals(1, requests.get());
+        assertEquals(0, source.getActive());
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        CFChannelSource source = new CFChannelSource(client, 2, 300, new CircuitBreaker(0, 1000));
+        mode = HANG;
+        long start = System.currentTimeMillis();
+        try {
+            source.find("SR*");
+            fail("Hanging ChannelFinder did not time out");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("did not answer within 300 ms"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        /* The request is still running: its slot is released when it ends */
+        assertEquals(1, source.getActive());
+        mode = OK;
+        hanging.countDown();
+        awaitIdle(source);
+        assertNotNull(source.find("SR*"));
+    }
+
+    @Test
+    public void testBusy() throws Exception {
+        final CFChannelSource source = new CFChannelSource(client, 1, 300, new CircuitBreaker(0, 1000));
+        mode = HANG;
+        try {
+            source.find("SR*");
+            fail("Hanging ChannelFinder did not time out");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("did not answer"));
+        }
+        /* The only slot is taken by the hanging call */
+        try {
+            source.find("BR*");
+            fail("Query was accepted while ChannelFinder is busy");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is busy (1 queries in progress)"));
+        }
+        assertEquals(1, requests.get());
+
+        mode = OK;
+        hanging.countDown();
+        awaitIdle(source);
+        assertNotNull(source.find("BR*"));
+    }
+
+    @Test
+    public void testBreaker() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2, 300);
+        CFChannelSource source = new CFChannelSource(client, 2, 5000, breaker);
+        mode = FAIL;
+        for (int i = 0; i < 2; i++) {
+            try {
+                source.find("SR*");
+                fail("Failing ChannelFinder returned a result");
+            } catch (RuntimeException e) {
+                // Expected: HTTP status 500
+            }
+        }
+        assertTrue(breaker.isOpen());
+
+        /* While the circuit is open, queries fail without contacting ChannelFinder */
+        int sent = requests.get();
+        try {
+            source.find("SR*");
+            fail("Query was sent with the circuit open");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is unavailable"));
+        }
+        assertEquals(sent, requests.get());
+        assertEquals(1, breaker.getRefused());
+
+        /* After the open time, a failing trial call keeps the circuit open */
+        Thread.sleep(350);
+        try {
+            source.find("SR*");
+            fail("Failing ChannelFinder returned a result");
+        } catch (RuntimeException e) {
+            assertEquals(sent + 1, requests.get());
+        }
+        assertTrue(breaker.isOpen());
+
+        /* A successful trial call closes it */
+        Thread.sleep(350);
+        mode = OK;
+        assertNotNull(source.find("SR*"));
+        assertFalse(breaker.isOpen());
+        assertEquals(0, breaker.getFailures());
+        assertEquals(0, source.getActive());
+    }
+
+    @Test
+    public void testStaleFallback() throws InterruptedException {
+        CFChannelSource source = new CFChannelSource(client, 2, 5000, new CircuitBreaker(0, 1000));
+        ResultCache cache = new ResultCache(100, 1 << 20, 50, 60000);
+        CFConnector connector = new CFConnector(source, cache);
+        PVStructure fresh = connector.getData(CFConnectorConcurrencyTest.args("query", "SR*"));
+        assertTrue(connector.isHealthy());
+
+        /* The cached result has expired, and ChannelFinder fails: the stale result is returned */
+        Thread.sleep(100);
+        mode = FAIL;
+        assertSame(fresh, connector.getData(CFConnectorConcurrencyTest.args("query", "SR*")));
+        assertEquals(1, cache.getStaleHits());
+        assertFalse(connector.isHealthy());
+
+        /* Without a cached result, the failure is passed on */
+        try {
+            connector.getData(CFConnectorConcurrencyTest.args("query", "BR*"));
+            fail("Failing ChannelFinder returned a result");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+    }
+}
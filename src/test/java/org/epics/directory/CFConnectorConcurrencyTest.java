@@ -0,0 +1,149 @@
+/**
+ * CFConnectorConcurrencyTest runs concurrent requests through one connector.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.epics.pvdata.factory.FieldFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.Field;
+import org.epics.pvdata.pv.FieldCreate;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.ScalarType;
+import org.junit.Test;
+
+/**
+ * CFConnectorConcurrencyTest checks that a single CFConnector answers concurrent
+ * requests with different sort keys correctly, i.e. that no sort or table state
+ * is shared between requests.
+ */
+public class CFConnectorConcurrencyTest {
+
+    private static final FieldCreate fieldCreate = FieldFactory.getFieldCreate();
+    private static final int THREADS = 8;
+    private static final int REQUESTS = 40;
+    private static final String[] SORTS = {"name", "name:desc", "pos:num", "pos:num:desc", "cell,pos:num"};
+
+    static PVStructure args(String... nameValues) {
+        String[] names = new String[nameValues.length / 2];
+        Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = nameValues[2 * i];
+            fields[i] = fieldCreate.createScalar(ScalarType.pvString);
+        }
+        PVStructure args = PVDataFactory.getPVDataCreate()
+                .createPVStructure(fieldCreate.createStructure(names, fields));
+        for (int i = 0; i < names.length; i++) {
+            args.getStringField(names[i]).put(nameValues[2 * i + 1]);
+        }
+        return args;
+    }
+
+    private static List<Channel> createChannels(int n) {
+        Random r = new Random(6);
+        List<Channel> channels = new ArrayList<Channel>(n);
+        for (int i = 0; i < n; i++) {
+            channels.add(Channel.Builder.channel(String.format("SR:C%02d-BI{BPM:%d}Pos-I", r.nextInt(30), i))
+                    .owner("owner")
+                    .with(Property.Builder.property("name", "n" + r.nextInt(500)))
+                    .with(Property.Builder.property("cell", "c" + r.nextInt(30)))
+                    .with(Property.Builder.property("pos", Double.toString(r.nextDouble() * 800.0)))
+                    .build());
+        }
+        return channels;
+    }
+
+    /* Checks the order of the rows of a result sorted by the given sort argument */
+    private static void checkOrder(String sort, DirectoryTable table) {
+        String[] keys = sort.split(",");
+        for (int row = 1; row < table.getRowCount(); row++) {
+            int cmp = 0;
+            for (int k = 0; k < keys.length && cmp == 0; k++) {
+                String[] parts = keys[k].split(":");
+                String a = table.getColumn(parts[0]).getString(row - 1);
+                String b = table.getColumn(parts[0]).getString(row);
+                cmp = keys[k].contains(":num") ? Double.compare(Double.parseDouble(a), Double.parseDouble(b))
+                        : a.compareTo(b);
+                if (keys[k].endsWith(":desc")) {
+                    cmp = -cmp;
+                }
+            }
+            if (cmp > 0) {
+                fail("sort=" + sort + ": rows " + (row - 1) + " and " + row + " are out of order");
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentSorts() throws Exception {
+        final List<Channel> channels = Collections.unmodifiableList(createChannels(3000));
+        /* No result cache, so that every request builds its own table */
+        final CFConnector connector = new CFConnector(new ChannelSource() {
+            @Override
+            public Collection<Channel> find(String query) {
+                return channels;
+            }
+        }, new ResultCache(0, 0, 0));
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    int checked = 0;
+                    for (int i = 0; i < REQUESTS; i++) {
+                        String sort = SORTS[(thread + i) % SORTS.length];
+                        String encoding = (i % 2 == 0) ? "plain" : "dict";
+                        DirectoryTable table = new DirectoryTable(connector.getData(
+                                args("query", "*", "sort", sort, "encoding", encoding)));
+                        assertEquals(sort, channels.size(), table.getRowCount());
+                        checkOrder(sort, table);
+                        checked++;
+                    }
+                    return checked;
+                }
+            }));
+        }
+        start.countDown();
+        int checked = 0;
+        for (Future<Integer> f : results) {
+            checked += f.get(120, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        assertEquals(THREADS * REQUESTS, checked);
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * ChannelIndexTest checks the index against a stub ChannelFinder and the reference query semantics.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * ChannelIndexTest is a differential test of ChannelIndex.find: for each query,
+ * the channels found by the index are compared with those returned by a stub
+ * ChannelFinder for the same query string, and with those selected by
+ * ChannelQuery.matches.
+ */
+public class ChannelIndexTest {
+
+    private static final String[] SYSTEMS = {"SR", "BR", "LN", "BT"};
+
+    private static List<Channel> channels;
+    private static ChannelIndex index;
+    private static ChannelSource channelFinder;
+
+    /**
+     * StubChannelFinder answers queries like the ChannelFinder web service,
+     * independently of ChannelQuery: the query string is split into search
+     * parameters the way ChannelFinderClientImpl.find(String) does it
+     * (~name, ~tag and property names, with comma separated values), and
+     * the parameters are matched using regular expressions, like the SQL
+     * patterns of the service: case insensitive, * and ? wildcards, values
+     * of one parameter ORed, different parameters and ~tag values ANDed.
+     */
+    private static class StubChannelFinder implements ChannelSource {
+
+        private final List<Channel> channels;
+
+        StubChannelFinder(List<Channel> channels) {
+            this.channels = channels;
+        }
+
+        private static Map<String, List<String>> searchMap(String query) {
+            Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+            for (String word : query.replaceAll(", ", ",").split("\\s")) {
+                if (word.length() == 0) {
+                    continue;
+                }
+                String key = "~name";
+                String value = word;
+                if (word.contains("=")) {
+                    String[] keyValue = word.split("=");
+                    key = keyValue[0].equalsIgnoreCase("Tags") ? "~tag" : keyValue[0].toLowerCase();
+                    value = keyValue[1].replaceAll("\\|\\|", ",");
+                }
+                List<String> values = map.get(key);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    map.put(key, values);
+                }
+                values.add(value);
+            }
+            return map;
+        }
+
+        private static Pattern pattern(String values) {
+            StringBuilder regex = new StringBuilder();
+            for (String value : values.split(",")) {
+                regex.append(regex.length() == 0 ? "" : "|");
+                for (String part : value.split("(?=[*?])|(?<=[*?])")) {
+                    if (part.equals("*")) {
+                        regex.append(".*");
+                    } else if (part.equals("?")) {
+                        regex.append('.');
+                    } else if (part.length() > 0) {
+                        regex.append(Pattern.quote(part));
+                    }
+                }
+            }
+            return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+        }
+
+        @Override
+        public Collection<Channel> find(String query) {
+            Map<String, List<String>> map = searchMap(query);
+            List<Channel> result = new ArrayList<Channel>();
+            for (Channel c : channels) {
+                boolean match = true;
+                for (Map.Entry<String, List<String>> e : map.entrySet()) {
+                    if (e.getKey().equals("~name")) {
+                        /* Name patterns are ORed */
+                        StringBuilder values = new StringBuilder();
+                        for (String v : e.getValue()) {
+                            values.append(values.length() == 0 ? "" : ",").append(v);
+                        }
+                        match = pattern(values.toString()).matcher(c.getName()).matches();
+                    } else if (e.getKey().equals("~tag")) {
+                        /* Tag patterns are ANDed */
+                        for (String values : e.getValue()) {
+                            for (String v : values.split(",")) {
+                                boolean found = false;
+                                for (Tag t : c.getTags()) {
+                                    found |= pattern(v).matcher(t.getName()).matches();
+                                }
+                                match &= found;
+                            }
+                        }
+                    } else {
+                        boolean found = false;
+                        for (Property p : c.getProperties()) {
+                            if (p.getName().equalsIgnoreCase(e.getKey())) {
+                                for (String values : e.getValue()) {
+                                    found |= pattern(values).matcher(p.getValue()).matches();
+                                }
+                            }
+                        }
+                        match = found;
+                    }
+                    if (!match) {
+                        break;
+                    }
+                }
+                if (match) {
+                    result.add(c);
+                }
+            }
+            return result;
+        }
+    }
+
+    @BeforeClass
+    public static void createIndex() {
+        Random r = new Random(1);
+        channels = new ArrayList<Channel>();
+        for (int i = 0; i < 5000; i++) {
+            Channel.Builder b = Channel.Builder.channel(SYSTEMS[r.nextInt(SYSTEMS.length)] + ":C" + r.nextInt(30)
+                    + "-MG:" + (char) ('A' + r.nextInt(6)) + "{Dev:" + i + "}Fld-" + (r.nextBoolean() ? "SP" : "I"))
+                    .owner("owner" + r.nextInt(3));
+            if (r.nextInt(5) > 0) {
+                b.with(Property.Builder.property("cell", Integer.toString(r.nextInt(30))));
+            }
+            if (r.nextInt(3) > 0) {
+                b.with(Property.Builder.property("devName", "Q" + r.nextInt(50) + "G"));
+            }
+            b.with(Property.Builder.property("sEnd", Double.toString(r.nextDouble() * 100)));
+            if (r.nextBoolean()) {
+                b.with(Tag.Builder.tag("aphla.sys.V1SR"));
+            }
+            if (r.nextInt(4) == 0) {
+                b.with(Tag.Builder.tag("GoldenOrbit"));
+            }
+            channels.add(b.build());
+        }
+        index = new ChannelIndex(channels);
+        channelFinder = new StubChannelFinder(channels);
+    }
+
+    private static List<String> names(Collection<Channel> channels) {
+        List<String> names = new ArrayList<String>();
+        for (Channel c : channels) {
+            names.add(c.getName());
+        }
+        return names;
+    }
+
+    /*
+     * Checks that the index finds the same channels as ChannelFinder, and exactly
+     * the channels matched by the query, in list order
+     */
+    private static int check(String query) {
+        ChannelQuery q = ChannelQuery.parse(query);
+        List<String> found = names(index.find(q));
+
+        List<String> reference = names(channelFinder.find(query));
+        List<String> sorted = new ArrayList<String>(found);
+        Collections.sort(reference);
+        Collections.sort(sorted);
+        assertEquals(query, reference, sorted);
+
+        List<Channel> matched = new ArrayList<Channel>();
+        for (Channel c : channels) {
+            if (q.matches(c)) {
+                matched.add(c);
+            }
+        }
+        assertEquals(query, names(matched), found);
+        return found.size();
+    }
+
+    @Test
+    public void testAll() {
+        assertEquals(channels.size(), check("*"));
+        assertEquals(channels.size(), index.size());
+    }
+
+    @Test
+    public void testNameGlobs() {
+        assertTrue(check("SR*") > 0);
+        assertTrue(check("sr:c1*") > 0);
+        assertTrue(check("*Fld-SP") > 0);
+        assertTrue(check("*{dev:12*") > 0);
+        assertTrue(check("?R:C2*") > 0);
+        assertTrue(check("*Dev:1?}*") > 0);
+        assertTrue(check("*dev*") > 0);
+        assertTrue(check("*:C?-MG:A*") > 0);
+        assertEquals(1, check("*{Dev:17}*"));
+        assertEquals(1, check(channels.get(17).getName()));
+        assertEquals(0, check("nosuch"));
+    }
+
+    @Test
+    public void testProperties() {
+        assertTrue(check("cell=1") > 0);
+        assertTrue(check("CELL=1,2") > 0);
+        assertTrue(check("devName=Q1*G") > 0);
+        assertTrue(check("sEnd=5*") > 0);
+        assertEquals(0, check("cell=99"));
+        assertEquals(0, check("nosuch=1"));
+        assertTrue(check("SR* cell=1,2") > 0);
+        assertTrue(check("*:C?-MG:A* cell=5") > 0);
+        assertTrue(check("cell=1 devName=Q2*") > 0);
+    }
+
+    @Test
+    public void testTags() {
+        assertTrue(check("Tags=GoldenOrbit") > 0);
+        assertTrue(check("Tags=golden*") > 0);
+        assertTrue(check("Tags=aphla.sys.V1SR,GoldenOrbit") > 0);
+        assertTrue(check("devName=Q1*G Tags=*") > 0);
+        assertEquals(0, check("Tags=nosuch"));
+    }
+
+    @Test
+    public void testOrPatterns() {
+        assertTrue(check("cell=1||3 Tags=golden*") > 0);
+        assertTrue(check("cell=1, 3") > 0);
+        assertTrue(check("SR* BR* devname=q2g") > 0);
+        assertTrue(check("SR:C1* *Fld-I") > 0);
+    }
+}
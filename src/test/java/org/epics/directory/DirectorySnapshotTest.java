@@ -0,0 +1,193 @@
+/**
+ * DirectorySnapshotTest checks reading back, and rejecting, snapshot files.
+ */
+package org.epics.directory;
+
+/*
+ * #%L
+ * directoryService - Java
+ * %%
+ * Copyright (C) 2012 EPICS
+ * %%
+ * Copyright (C) 2012 Helmholtz-Zentrum Berlin fuer Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms.
+ * #L%
+ */
+
+import gov.bnl.channelfinder.api.Channel;
+import gov.bnl.channelfinder.api.Property;
+import gov.bnl.channelfinder.api.Tag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DirectorySnapshotTest writes snapshots, damages them in various ways, and checks
+ * that damaged or outdated snapshots are rejected instead of being loaded.
+ */
+public class DirectorySnapshotTest {
+
+    private static final long HOUR = 3600L * 1000;
+
+    private File file;
+    private List<Channel> channels;
+
+    @Before
+    public void writeSnapshot() throws IOException {
+        channels = new ArrayList<Channel>();
+        for (int i = 0; i < 100; i++) {
+            Channel.Builder b = Channel.Builder.channel("SR:C" + (i % 30) + "{BPM:" + i + "}Pos-I")
+                    .owner("owner" + (i % 3))
+                    .with(Property.Builder.property("cell", Integer.toString(i % 30)));
+            if (i % 2 == 0) {
+                b.with(Tag.Builder.tag("GoldenOrbit"));
+            }
+            channels.add(b.build());
+        }
+        file = File.createTempFile("ds-snapshot", ".dat");
+        DirectorySnapshot.write(file, channels);
+    }
+
+    @After
+    public void deleteSnapshot() {
+        file.delete();
+    }
+
+    /* Overwrites part of the snapshot file */
+    private void patch(long position, byte[] data) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.seek(position);
+            f.write(data);
+        } finally {
+            f.close();
+        }
+    }
+
+    private void patchInt(long position, int value) throws IOException {
+        patch(position, new byte[] {
+            (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(length);
+        } finally {
+            f.close();
+        }
+    }
+
+    /* Checks that reading the snapshot fails with a message containing the given text */
+    private void assertRejected(String message) {
+        try {
+            DirectorySnapshot.read(file);
+            fail("Damaged snapshot was read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+        assertFalse(new ChannelDirectory(null, 60000, 1000, file, 0).loadSnapshot());
+    }
+
+    @Test
+    public void testReadBack() throws IOException {
+        DirectorySnapshot snapshot = DirectorySnapshot.read(file);
+        assertTrue(Math.abs(System.currentTimeMillis() - snapshot.getCreated()) < HOUR);
+        assertEquals(channels.size(), snapshot.getChannels().size());
+        for (int i = 0; i < channels.size(); i++) {
+            Channel expected = channels.get(i);
+            Channel c = snapshot.getChannels().get(i);
+            assertEquals(expected.getName(), c.getName());
+            assertEquals(expected.getOwner(), c.getOwner());
+            assertEquals(expected.getProperty("cell").getValue(), c.getProperty("cell").getValue());
+            assertEquals(expected.getTag("GoldenOrbit") != null, c.getTag("GoldenOrbit") != null);
+        }
+
+        ChannelDirectory directory = new ChannelDirectory(null, 60000, 1000, file, HOUR);
+        assertTrue(directory.loadSnapshot());
+        assertEquals(channels.size(), directory.size());
+        Collection<Channel> found = directory.find("SR:C2{* Tags=GoldenOrbit");
+        assertEquals(4, found.size());
+    }
+
+    @Test
+    public void testBadMagic() throws IOException {
+        patchInt(0, 0x12345678);
+        assertRejected("is not a directory snapshot");
+    }
+
+    @Test
+    public void testBadVersion() throws IOException {
+        patchInt(4, 99);
+        assertRejected("Unsupported snapshot version 99");
+    }
+
+    @Test
+    public void testChecksumMismatch() throws IOException {
+        long length = file.length();
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        byte last;
+        try {
+            f.seek(length - 1);
+            last = f.readByte();
+        } finally {
+            f.close();
+        }
+        patch(length - 1, new byte[] {(byte) (last ^ 0x01)});
+        assertRejected("checksum mismatch");
+    }
+
+    @Test
+    public void testHeaderChecksum() throws IOException {
+        /* Flip a bit of the creation time */
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        byte b;
+        try {
+            f.seek(15);
+            b = f.readByte();
+        } finally {
+            f.close();
+        }
+        patch(15, new byte[] {(byte) (b ^ 0x01)});
+        assertRejected("checksum mismatch");
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        truncate(file.length() - 10);
+        assertRejected("bytes of data, found");
+        truncate(20);
+        assertRejected("file too short");
+    }
+
+    @Test
+    public void testStale() throws IOException {
+        long created = System.currentTimeMillis() - 2 * HOUR;
+        DirectorySnapshot.write(file, channels, created);
+        assertEquals(created, DirectorySnapshot.read(file).getCreated());
+
+        ChannelDirectory directory = new ChannelDirectory(null, 60000, 1000, file, HOUR);
+        assertFalse(directory.loadSnapshot());
+        assertFalse(directory.isLoaded());
+
+        directory = new ChannelDirectory(null, 60000, 1000, file, 3 * HOUR);
+        assertTrue(directory.loadSnapshot());
+        assertTrue(directory.isLoaded());
+
+        /* Without a maximum age, any snapshot is loaded */
+        assertTrue(new ChannelDirectory(null, 60000, 1000, file, 0).loadSnapshot());
+    }
+}